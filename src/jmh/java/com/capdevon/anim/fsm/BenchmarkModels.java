@@ -0,0 +1,42 @@
+package com.capdevon.anim.fsm;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+
+/**
+ * Builds the headless models used by the benchmarks.
+ *
+ * @author capdevon
+ */
+public class BenchmarkModels {
+
+    private BenchmarkModels() {
+    }
+
+    /**
+     * Creates a HeadlessAnimComposer with the given clips.
+     * @param length    - The length of each clip, in seconds.
+     * @param clipNames - The names of the clips.
+     * @return
+     */
+    public static HeadlessAnimComposer createComposer(float length, String... clipNames) {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        for (String name : clipNames) {
+            composer.addClip(name, length);
+        }
+        return composer;
+    }
+
+    /**
+     * Returns the given number of clip names: clip0, clip1...
+     * @param count
+     * @return
+     */
+    public static String[] clipNames(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "clip" + i;
+        }
+        return names;
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.capdevon.anim.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.fsm.BlendTree.BlendTreeType;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector2f;
+
+/**
+ * Measures the selection of the child motion of 1D and 2D blend trees with
+ * the given number of children. The children of the 2D tree are placed on a
+ * circle around the origin.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlendTreeBenchmark {
+
+    @Param({ "2", "8", "32" })
+    public int childCount;
+
+    private BlendTree tree1D;
+    private BlendTreeInfo info1D;
+    private BlendTree tree2D;
+    private float value;
+
+    @Setup
+    public void setup() {
+        String[] clips = BenchmarkModels.clipNames(childCount);
+
+        tree1D = new BlendTree();
+        tree1D.setBlendType(BlendTreeType.Simple1D);
+        for (int i = 0; i < childCount; i++) {
+            tree1D.addChild(clips[i], (float) i / childCount);
+        }
+        info1D = new BlendTreeInfo(tree1D);
+
+        tree2D = new BlendTree();
+        tree2D.setBlendType(BlendTreeType.SimpleDirectional2D);
+        for (int i = 0; i < childCount; i++) {
+            float angle = FastMath.TWO_PI * i / childCount;
+            tree2D.addChild(clips[i], new Vector2f(FastMath.cos(angle), FastMath.sin(angle)));
+        }
+    }
+
+    @Benchmark
+    public ChildMotion getBlendMotion1D() {
+        value = (value + 0.013f) % 1f;
+        return tree1D.getBlendMotion(info1D, value);
+    }
+
+    @Benchmark
+    public ChildMotion getBlendMotion2D() {
+        value = (value + 0.013f) % 1f;
+        float angle = FastMath.TWO_PI * value;
+        return tree2D.getBlendMotion(FastMath.cos(angle), FastMath.sin(angle));
+    }
+
+}
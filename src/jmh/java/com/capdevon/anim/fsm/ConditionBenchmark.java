@@ -0,0 +1,69 @@
+package com.capdevon.anim.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Measures the evaluation of a single condition, for each parameter type.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionBenchmark {
+
+    @Param({ "Float", "Int", "Bool", "Trigger" })
+    public AnimatorControllerParameterType type;
+
+    private AnimatorController animator;
+    private AnimatorStateInfo info;
+    private AnimatorCondition condition;
+
+    @Setup
+    public void setup() {
+        animator = new AnimatorController(BenchmarkModels.createComposer(1f, "idle", "walk"));
+        animator.addParameter("param", type);
+
+        AnimatorStateMachine sm = animator.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        AnimatorState walk = sm.addState("Walk", "walk");
+        AnimatorStateTransition transition = idle.addTransition(walk);
+
+        switch (type) {
+            case Float:
+                transition.addCondition(AnimatorConditionMode.Greater, 0.5f, "param");
+                break;
+            case Int:
+                transition.addCondition(AnimatorConditionMode.Equals, 2, "param");
+                break;
+            default:
+                transition.addCondition(AnimatorConditionMode.If, 0, "param");
+                break;
+        }
+        condition = transition.conditions.get(0);
+        info = animator.getCurrentAnimatorStateInfo(0);
+    }
+
+    @Benchmark
+    public boolean evaluate() {
+        return condition.evalute(animator, info);
+    }
+
+}
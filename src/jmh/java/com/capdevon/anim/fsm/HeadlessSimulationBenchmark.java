@@ -0,0 +1,87 @@
+package com.capdevon.anim.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.jme3.scene.Node;
+
+/**
+ * Measures a server frame simulating the given number of characters, each one
+ * with a HeadlessAnimComposer and an AnimatorController sharing the same
+ * graph. The characters cycle through idle, walk and run, driven by a Float
+ * parameter and by exit times.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadlessSimulationBenchmark {
+
+    private static final float TPF = 1 / 60f;
+
+    @Param({ "100", "1000", "5000" })
+    public int characters;
+
+    private Node world;
+    private AnimatorController[] animators;
+    private int speedId;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        AnimatorController template = new AnimatorController(BenchmarkModels.createComposer(1f, "idle", "walk", "run"));
+        template.addParameter("speed", AnimatorControllerParameterType.Float);
+        speedId = template.getParameterId("speed");
+
+        AnimatorStateMachine sm = template.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        AnimatorState walk = sm.addState("Walk", "walk");
+        AnimatorState run = sm.addState("Run", "run");
+        sm.setDefaultState(idle);
+        idle.addTransition(walk).addCondition(AnimatorConditionMode.Greater, 0.1f, "speed");
+        walk.addTransition(run).addCondition(AnimatorConditionMode.Greater, 0.6f, "speed");
+        walk.addTransition(idle).addCondition(AnimatorConditionMode.Less, 0.1f, "speed");
+        run.addTransition(idle, 2f);
+
+        world = new Node("World");
+        animators = new AnimatorController[characters];
+        for (int i = 0; i < characters; i++) {
+            HeadlessAnimComposer composer = BenchmarkModels.createComposer(1f, "idle", "walk", "run");
+            Node character = new Node("Character" + i);
+            character.addControl(composer);
+            animators[i] = new AnimatorController(template, composer);
+            character.addControl(animators[i]);
+            world.attachChild(character);
+        }
+    }
+
+    @Benchmark
+    public void update() {
+        frame++;
+        for (int i = 0; i < animators.length; i++) {
+            // each character changes its speed every second, at a different frame
+            if ((frame + i) % 60 == 0) {
+                animators[i].setFloat(speedId, ((frame + i) / 60 % 4) * 0.3f);
+            }
+        }
+        world.updateLogicalState(TPF);
+    }
+
+}
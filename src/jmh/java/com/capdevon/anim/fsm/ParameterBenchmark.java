@@ -0,0 +1,66 @@
+package com.capdevon.anim.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Measures the cost of reading and writing the parameters of an
+ * AnimatorController, by name and by id.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParameterBenchmark {
+
+    private AnimatorController animator;
+    private int speedId;
+    private float value;
+
+    @Setup
+    public void setup() {
+        animator = new AnimatorController(BenchmarkModels.createComposer(1f, "idle"));
+        for (int i = 0; i < 16; i++) {
+            animator.addParameter("param" + i, AnimatorControllerParameterType.Float);
+        }
+        animator.addParameter("speed", AnimatorControllerParameterType.Float);
+        speedId = animator.getParameterId("speed");
+    }
+
+    @Benchmark
+    public void setFloatByName() {
+        animator.setFloat("speed", value += 0.1f);
+    }
+
+    @Benchmark
+    public void setFloatById() {
+        animator.setFloat(speedId, value += 0.1f);
+    }
+
+    @Benchmark
+    public float getFloatByName() {
+        return animator.getFloat("speed");
+    }
+
+    @Benchmark
+    public float getFloatById() {
+        return animator.getFloat(speedId);
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.capdevon.anim.fsm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Measures the replay of a recorded session: the parameter writes and the
+ * updates of a controller with a locomotion layer and an upper body layer,
+ * driven by random gameplay inputs with an irregular tpf. The session is
+ * recorded once with an AnimatorRecorder and replayed from the mapped log.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int updates;
+
+    private Path log;
+    private AnimatorReplayer replayer;
+
+    @Setup
+    public void setup() throws IOException {
+        AnimatorController template = createTemplate();
+        log = Files.createTempFile("animator", ".log");
+
+        AnimatorController recorded = new AnimatorController(template, BenchmarkModels.createComposer(1f, "idle", "walk", "run", "jump", "aim"));
+        int speedId = recorded.getParameterId("speed");
+        int jumpId = recorded.getParameterId("jump");
+        int aimId = recorded.getParameterId("aim");
+
+        Random random = new Random(42);
+        try (AnimatorRecorder recorder = new AnimatorRecorder(recorded, log)) {
+            for (int i = 0; i < updates; i++) {
+                switch (random.nextInt(30)) {
+                    case 0:
+                        recorded.setFloat(speedId, random.nextFloat());
+                        break;
+                    case 1:
+                        recorded.setTrigger(jumpId);
+                        break;
+                    case 2:
+                        recorded.setBool(aimId, random.nextBoolean());
+                        break;
+                    default:
+                        break;
+                }
+                recorded.updateLayers(1 / 60f + random.nextFloat() * 0.01f);
+            }
+        }
+
+        AnimatorController animator = new AnimatorController(template, BenchmarkModels.createComposer(1f, "idle", "walk", "run", "jump", "aim"));
+        replayer = AnimatorReplayer.open(animator, log);
+    }
+
+    private static AnimatorController createTemplate() {
+        AnimatorController template = new AnimatorController(BenchmarkModels.createComposer(1f, "idle", "walk", "run", "jump", "aim"));
+        template.addParameter("speed", AnimatorControllerParameterType.Float);
+        template.addParameter("jump", AnimatorControllerParameterType.Trigger);
+        template.addParameter("aim", AnimatorControllerParameterType.Bool);
+
+        AnimatorStateMachine sm = template.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        AnimatorState walk = sm.addState("Walk", "walk");
+        AnimatorState run = sm.addState("Run", "run");
+        AnimatorState jump = sm.addState("Jump", "jump");
+        sm.setDefaultState(idle);
+        idle.addTransition(walk).addCondition(AnimatorConditionMode.Greater, 0.1f, "speed");
+        walk.addTransition(run).addCondition(AnimatorConditionMode.Greater, 0.6f, "speed");
+        walk.addTransition(idle).addCondition(AnimatorConditionMode.Less, 0.1f, "speed");
+        run.addTransition(walk).addCondition(AnimatorConditionMode.Less, 0.6f, "speed");
+        idle.addTransition(jump).addCondition(AnimatorConditionMode.If, 0, "jump");
+        walk.addTransition(jump).addCondition(AnimatorConditionMode.If, 0, "jump");
+        run.addTransition(jump).addCondition(AnimatorConditionMode.If, 0, "jump");
+        jump.addTransition(idle, 0.9f);
+
+        AnimatorStateMachine upper = template.addLayer("UpperBody", null).getStateMachine();
+        AnimatorState empty = upper.addState("Empty");
+        AnimatorState aim = upper.addState("Aim", "aim");
+        upper.setDefaultState(empty);
+        empty.addTransition(aim).addCondition(AnimatorConditionMode.If, 0, "aim");
+        aim.addTransition(empty).addCondition(AnimatorConditionMode.IfNot, 0, "aim");
+        return template;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    @Benchmark
+    public long replay() {
+        replayer.rewind();
+        return replayer.replay();
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.capdevon.anim.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Measures the update of a state machine whose current state has the given
+ * number of outgoing transitions. None of the transitions is taken, and the
+ * parameter read by the conditions changes at every update, so all the
+ * transitions are checked every time.
+ *
+ * @author capdevon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateMachineBenchmark {
+
+    private static final float TPF = 1 / 60f;
+
+    @Param({ "1", "10", "50" })
+    public int transitions;
+
+    private AnimatorController animator;
+    private AnimatorStateMachine stateMachine;
+    private AnimatorStateInfo info;
+    private int speedId;
+    private float value;
+
+    @Setup
+    public void setup() {
+        String[] clips = BenchmarkModels.clipNames(transitions + 1);
+        animator = new AnimatorController(BenchmarkModels.createComposer(1f, clips));
+        animator.addParameter("speed", AnimatorControllerParameterType.Float);
+        speedId = animator.getParameterId("speed");
+
+        stateMachine = animator.getLayer(0).getStateMachine();
+        AnimatorState idle = stateMachine.addState("Idle", clips[0]);
+        stateMachine.setDefaultState(idle);
+        for (int i = 1; i <= transitions; i++) {
+            AnimatorState state = stateMachine.addState("State" + i, clips[i]);
+            // never true, the speed stays below 1
+            idle.addTransition(state).addCondition(AnimatorConditionMode.Greater, 1 + i, "speed");
+        }
+
+        info = animator.getCurrentAnimatorStateInfo(0);
+        // enter the default state
+        stateMachine.update(animator, info, TPF);
+    }
+
+    @Benchmark
+    public AnimatorState update() {
+        value = (value + 0.1f) % 1f;
+        animator.setFloat(speedId, value);
+        stateMachine.update(animator, info, TPF);
+        return info.currentState;
+    }
+
+    @Benchmark
+    public AnimatorState updateUnchanged() {
+        stateMachine.update(animator, info, TPF);
+        return info.currentState;
+    }
+
+}
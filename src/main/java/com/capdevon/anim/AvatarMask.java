@@ -1,17 +1,23 @@
 package com.capdevon.anim;
 
+import java.io.IOException;
 import java.util.BitSet;
 
 import com.jme3.anim.AnimationMask;
 import com.jme3.anim.Joint;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 
 /**
  *
  * @author capdevon
  */
-public class AvatarMask implements AnimationMask {
+public class AvatarMask implements AnimationMask, Savable {
 
-    private final BitSet affectedJoints = new BitSet();
+    private BitSet affectedJoints = new BitSet();
 
     /**
      * Instantiate a mask that affects no joints.
@@ -28,10 +34,37 @@ public class AvatarMask implements AnimationMask {
         affectedJoints.clear(jointId);
     }
 
+    /**
+     * Returns true if this mask affects all the joints affected by the given mask.
+     * @param mask
+     * @return
+     */
+    public boolean containsAll(AvatarMask mask) {
+        BitSet joints = mask.affectedJoints;
+        for (int i = joints.nextSetBit(0); i >= 0; i = joints.nextSetBit(i + 1)) {
+            if (!affectedJoints.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean contains(Object target) {
         Joint joint = (Joint) target;
         return affectedJoints.get(joint.getId());
     }
 
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(affectedJoints, "affectedJoints", null);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        affectedJoints = ic.readBitSet("affectedJoints", new BitSet());
+    }
+
 }
@@ -0,0 +1,185 @@
+package com.capdevon.anim;
+
+import java.io.IOException;
+
+import com.jme3.anim.AnimClip;
+import com.jme3.anim.AnimComposer;
+import com.jme3.anim.AnimLayer;
+import com.jme3.anim.AnimTrack;
+import com.jme3.anim.AnimationMask;
+import com.jme3.anim.tween.action.Action;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.util.clone.Cloner;
+
+/**
+ * An AnimComposer that only advances the time of the action of each layer,
+ * without interpolating any track. The layers, the actions and the clip
+ * lengths behave like in a regular AnimComposer, so an AnimatorController
+ * can run its state machines on a server, with no model, no skeleton and no
+ * renderer.
+ * <p>
+ * The clips can be copied from a loaded AnimComposer, keeping only their
+ * length, or declared with {@link #addClip(String, double)}. Tweens and
+ * callbacks of the actions are not run.
+ * </p>
+ * Add the composer and the controller to a Node and call
+ * {@code node.updateLogicalState(tpf)} to simulate them.
+ *
+ * @author capdevon
+ */
+public class HeadlessAnimComposer extends AnimComposer {
+
+    //The layers, rebuilt when a layer is added or removed.
+    private AnimLayer[] layerArray;
+    private boolean layersChanged = true;
+
+    /**
+     * Constructor.
+     */
+    public HeadlessAnimComposer() {
+        super();
+    }
+
+    /**
+     * Creates a composer with the clips of the given composer. Only the name
+     * and the length of each clip are kept.
+     * @param composer
+     */
+    public HeadlessAnimComposer(AnimComposer composer) {
+        super();
+        for (AnimClip clip : composer.getAnimClips()) {
+            addClip(clip.getName(), clip.getLength());
+        }
+    }
+
+    /**
+     * Adds a clip without tracks, lasting the given time.
+     * @param name
+     * @param length - The length of the clip, in seconds.
+     * @return
+     */
+    public AnimClip addClip(String name, double length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Clip length must not be negative: " + length);
+        }
+        AnimClip clip = new AnimClip(name);
+        clip.setTracks(new AnimTrack<?>[] { new LengthTrack(length) });
+        addAnimClip(clip);
+        return clip;
+    }
+
+    @Override
+    public void makeLayer(String name, AnimationMask mask) {
+        super.makeLayer(name, mask);
+        layersChanged = true;
+    }
+
+    @Override
+    public void removeLayer(String name) {
+        super.removeLayer(name);
+        layersChanged = true;
+    }
+
+    /**
+     * Advances the time of each layer, the same way a regular AnimComposer
+     * does, without interpolating the actions: a negative time is wrapped
+     * around the length of the action, and the time is reset to 0 once it
+     * reaches the end of the action.
+     */
+    @Override
+    protected void controlUpdate(float tpf) {
+        if (layersChanged || layerArray == null) {
+            layerArray = getLayerNames().stream().map(this::getLayer).toArray(AnimLayer[]::new);
+            layersChanged = false;
+        }
+
+        float globalSpeed = getGlobalSpeed();
+        for (int i = 0; i < layerArray.length; i++) {
+            AnimLayer layer = layerArray[i];
+            Action action = layer.getCurrentAction();
+            if (action == null) {
+                continue;
+            }
+            double length = action.getLength();
+            if (length > 0) {
+                double time = layer.getTime() + tpf * action.getSpeed() * globalSpeed;
+                if (time < 0) {
+                    time = (time % length + length) % length;
+                }
+                if (time >= length) {
+                    // the action is over, AnimLayer restarts it from 0
+                    time = 0;
+                }
+                layer.setTime(time);
+            }
+        }
+    }
+
+    @Override
+    public void cloneFields(Cloner cloner, Object original) {
+        super.cloneFields(cloner, original);
+        layerArray = null;
+        layersChanged = true;
+    }
+
+    /**
+     * A track with a length and no data, giving its length to a clip.
+     */
+    public static class LengthTrack implements AnimTrack<Object> {
+
+        private double length;
+
+        /**
+         * constructor for serialization only
+         */
+        protected LengthTrack() {
+        }
+
+        /**
+         * Constructor.
+         * @param length - The length of the track, in seconds.
+         */
+        public LengthTrack(double length) {
+            this.length = length;
+        }
+
+        @Override
+        public double getLength() {
+            return length;
+        }
+
+        @Override
+        public void getDataAtTime(double time, Object store) {
+            // no data
+        }
+
+        @Override
+        public Object jmeClone() {
+            try {
+                return super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void cloneFields(Cloner cloner, Object original) {
+        }
+
+        @Override
+        public void write(JmeExporter ex) throws IOException {
+            OutputCapsule oc = ex.getCapsule(this);
+            oc.write(length, "length", 0d);
+        }
+
+        @Override
+        public void read(JmeImporter im) throws IOException {
+            InputCapsule ic = im.getCapsule(this);
+            length = ic.readDouble("length", 0d);
+        }
+    }
+
+}
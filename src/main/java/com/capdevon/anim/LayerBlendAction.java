@@ -0,0 +1,136 @@
+package com.capdevon.anim;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import com.jme3.anim.Joint;
+import com.jme3.anim.tween.action.BlendableAction;
+import com.jme3.anim.util.HasLocalTransform;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+
+/**
+ * A BlendableAction that plays another action on an AnimLayer with a
+ * weight, on top of the pose written by the lower layers.
+ * <p>
+ * In override mode the pose of the wrapped action is blended with the current
+ * pose. In additive mode the difference between the pose of the wrapped
+ * action and the initial pose of each joint is added to the current pose, so
+ * the lower layers must animate the joints affected by the layer. Targets
+ * that are not joints are always blended in override mode.
+ * </p>
+ * When the weight is zero the wrapped action is not interpolated at all.
+ *
+ * @author capdevon
+ */
+public class LayerBlendAction extends BlendableAction {
+
+    //The wrapped action.
+    private BlendableAction action;
+    //Adds the pose of the action to the current pose, instead of blending.
+    private boolean additive = false;
+    //True if the last interpolation of the action was not fading in.
+    private boolean blended = false;
+
+    private final Vector3f tempVec = new Vector3f();
+    private final Quaternion tempRot = new Quaternion();
+    private final Quaternion deltaRot = new Quaternion();
+
+    /**
+     * Constructor.
+     */
+    public LayerBlendAction() {
+        super();
+    }
+
+    /**
+     * Sets the action played by the layer.
+     * @param action - The action, or null to play nothing.
+     */
+    public void setAction(BlendableAction action) {
+        this.action = action;
+        this.blended = false;
+        if (action != null) {
+            setLength(action.getLength());
+        }
+    }
+
+    public BlendableAction getAction() {
+        return action;
+    }
+
+    public boolean isAdditive() {
+        return additive;
+    }
+
+    public void setAdditive(boolean additive) {
+        this.additive = additive;
+    }
+
+    /**
+     * Returns true if the action has been interpolated and its transition
+     * is complete, so the pose of the action is not mixed with the previous one.
+     * @return
+     */
+    public boolean isTransitionComplete() {
+        return action != null && blended;
+    }
+
+    /**
+     * Returns the speed of the wrapped action, used by the AnimLayer to
+     * advance its time.
+     */
+    @Override
+    public double getSpeed() {
+        return (action != null) ? action.getSpeed() : super.getSpeed();
+    }
+
+    @Override
+    public void doInterpolate(double t) {
+        if (action == null) {
+            return;
+        }
+        blended = getTransitionWeight() >= 1;
+        action.setCollectTransformDelegate(this);
+        action.setMask(getMask());
+        action.interpolate(t);
+        action.setMask(null);
+        action.setCollectTransformDelegate(null);
+    }
+
+    @Override
+    public Collection<HasLocalTransform> getTargets() {
+        return (action != null) ? action.getTargets() : Collections.emptyList();
+    }
+
+    @Override
+    public void collectTransform(HasLocalTransform target, Transform t, float weight, BlendableAction source) {
+        float w = weight * getWeight() * getTransitionWeight();
+        Transform current = target.getLocalTransform();
+
+        if (additive && target instanceof Joint) {
+            Transform ref = ((Joint) target).getInitialTransform();
+
+            tempVec.set(t.getTranslation()).subtractLocal(ref.getTranslation()).multLocal(w);
+            current.getTranslation().addLocal(tempVec);
+
+            // rotation relative to the initial pose, scaled by the weight
+            deltaRot.set(ref.getRotation()).inverseLocal().multLocal(t.getRotation());
+            tempRot.slerp(Quaternion.IDENTITY, deltaRot, w);
+            current.getRotation().multLocal(tempRot);
+
+            Vector3f refScale = ref.getScale();
+            Vector3f scale = t.getScale();
+            current.getScale().multLocal(
+                    1 + (scale.x / refScale.x - 1) * w,
+                    1 + (scale.y / refScale.y - 1) * w,
+                    1 + (scale.z / refScale.z - 1) * w);
+        } else {
+            current.interpolateTransforms(current, t, w);
+        }
+
+        target.setLocalTransform(current);
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.capdevon.anim;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jme3.anim.Joint;
+import com.jme3.anim.tween.action.BlendableAction;
+import com.jme3.anim.util.HasLocalTransform;
+import com.jme3.math.Transform;
+
+/**
+ * A BlendableAction that blends any number of actions, each one with its own
+ * weight. Unlike BlendAction, which blends two actions at a time, all the
+ * actions with a weight greater than zero contribute to the pose. Actions with
+ * a zero weight are not interpolated.
+ * <p>
+ * By default the weights are normalized during the blend, so they do not need
+ * to sum to 1. When the normalization is disabled, each weight is an absolute
+ * blend factor: the actions are applied in order over the bind pose of the
+ * joints, or the transform the spatials had when the action was created, each
+ * one moving the pose toward its own by its weight, clamped to 1.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class WeightedBlendAction extends BlendableAction {
+
+    private final float[] weights;
+    private final double[] timeFactor;
+    //The index of each target in the arrays below.
+    private final Map<HasLocalTransform, Integer> targetMap = new HashMap<>();
+    //The targets, their blended transforms, and the sum of the weights collected in the current frame.
+    private final HasLocalTransform[] targets;
+    private final Transform[] transforms;
+    private final float[] collectedWeights;
+    //The pose the absolute weights are applied over, one per target.
+    private final Transform[] basePoses;
+    //The weight of the action being interpolated.
+    private float currentWeight;
+    //True if the weights are normalized, false if they are absolute blend factors.
+    private boolean normalized = true;
+
+    /**
+     * Constructor. The first action has weight 1, all the others 0.
+     * @param actions
+     */
+    public WeightedBlendAction(BlendableAction... actions) {
+        super(actions);
+        weights = new float[actions.length];
+        timeFactor = new double[actions.length];
+        if (actions.length > 0) {
+            weights[0] = 1f;
+        }
+
+        for (BlendableAction action : actions) {
+            if (action.getLength() > getLength()) {
+                setLength(action.getLength());
+            }
+            for (HasLocalTransform target : action.getTargets()) {
+                if (!targetMap.containsKey(target)) {
+                    targetMap.put(target, targetMap.size());
+                }
+            }
+        }
+
+        targets = new HasLocalTransform[targetMap.size()];
+        transforms = new Transform[targets.length];
+        collectedWeights = new float[targets.length];
+        basePoses = new Transform[targets.length];
+        for (Map.Entry<HasLocalTransform, Integer> entry : targetMap.entrySet()) {
+            HasLocalTransform target = entry.getKey();
+            int index = entry.getValue();
+            targets[index] = target;
+            transforms[index] = new Transform();
+            basePoses[index] = (target instanceof Joint) ? ((Joint) target).getInitialTransform() : target.getLocalTransform().clone();
+        }
+
+        // Stretching any action that doesn't have the same length.
+        for (int i = 0; i < actions.length; i++) {
+            timeFactor[i] = 1;
+            double actionLength = actions[i].getLength();
+            if (actionLength > 0 && getLength() > 0) {
+                timeFactor[i] = actionLength / getLength();
+            }
+        }
+    }
+
+    /**
+     * Sets the weight of the action at the given index.
+     * @param index
+     * @param weight
+     */
+    public void setWeight(int index, float weight) {
+        weights[index] = weight;
+    }
+
+    public float getWeight(int index) {
+        return weights[index];
+    }
+
+    /**
+     * Copies the weights of all actions.
+     * @param src - The weights, one per action.
+     */
+    public void setWeights(float[] src) {
+        System.arraycopy(src, 0, weights, 0, weights.length);
+    }
+
+    public int getActionCount() {
+        return weights.length;
+    }
+
+    public boolean isNormalized() {
+        return normalized;
+    }
+
+    /**
+     * Sets whether the weights are normalized, or applied as absolute blend
+     * factors over the bind pose.
+     * @param normalized
+     */
+    public void setNormalized(boolean normalized) {
+        this.normalized = normalized;
+    }
+
+    @Override
+    public void doInterpolate(double t) {
+        for (int i = 0; i < weights.length; i++) {
+            float weight = weights[i];
+            if (weight <= 0) {
+                continue;
+            }
+
+            BlendableAction action = (BlendableAction) actions[i];
+            currentWeight = weight;
+            action.setCollectTransformDelegate(this);
+            action.setMask(getMask());
+            action.setWeight(weight);
+            action.interpolate(t * timeFactor[i]);
+            action.setMask(null);
+            action.setCollectTransformDelegate(null);
+        }
+
+        // only the targets written by the actions, the others may be masked
+        for (int i = 0; i < targets.length; i++) {
+            if (collectedWeights[i] > 0) {
+                collectedWeights[i] = 0;
+                collect(targets[i], transforms[i]);
+            } else if (!normalized && (getMask() == null || getMask().contains(targets[i]))) {
+                // no action contributes, the target is at its base pose
+                collect(targets[i], basePoses[i]);
+            }
+        }
+    }
+
+    @Override
+    public Collection<HasLocalTransform> getTargets() {
+        return targetMap.keySet();
+    }
+
+    @Override
+    public void collectTransform(HasLocalTransform target, Transform t, float weight, BlendableAction source) {
+        int index = targetMap.get(target);
+        Transform tr = transforms[index];
+        float total = collectedWeights[index] + currentWeight;
+        if (!normalized) {
+            // each transform is blended over the pose so far by its own weight
+            if (collectedWeights[index] == 0) {
+                tr.set(basePoses[index]);
+            }
+            tr.interpolateTransforms(tr, t, Math.min(currentWeight, 1f));
+        } else if (collectedWeights[index] == 0) {
+            tr.set(t);
+        } else {
+            // the blended transform is the weighted average of the transforms collected so far
+            tr.interpolateTransforms(tr, t, currentWeight / total);
+        }
+        collectedWeights[index] = total;
+    }
+
+    private void collect(HasLocalTransform target, Transform tr) {
+        if (collectTransformDelegate != null) {
+            collectTransformDelegate.collectTransform(target, tr, this.getWeight(), this);
+        } else {
+            if (getTransitionWeight() == 1) {
+                target.setLocalTransform(tr);
+            } else {
+                Transform trans = target.getLocalTransform();
+                trans.interpolateTransforms(trans, tr, getTransitionWeight());
+                target.setLocalTransform(trans);
+            }
+        }
+    }
+
+}
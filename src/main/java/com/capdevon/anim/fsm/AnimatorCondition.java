@@ -5,14 +5,23 @@
  */
 package com.capdevon.anim.fsm;
 
-import java.util.List;
+import java.io.IOException;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 
 /**
  * Condition that is used to determine if a transition must be taken.
  *
  * @author capdevon
  */
-public class AnimatorCondition {
+public class AnimatorCondition implements Savable {
+
+    private AnimatorController animator;
 
     //The mode of the condition.
     protected AnimatorConditionMode mode;
@@ -20,73 +29,110 @@ public class AnimatorCondition {
     protected String parameter;
     //The AnimatorParameter's threshold value for the condition to be true.
     protected float threshold;
+    //The id of the bound parameter in the controller parameter table.
+    protected int parameterId = -1;
+    //The type of the bound parameter.
+    protected AnimatorControllerParameterType parameterType;
     
+    /**
+     * constructor for serialization only
+     */
     protected AnimatorCondition() {
-        // default constructor.
-    }
-
-    protected boolean evalute(List<AnimatorControllerParameter> parameters) {
-        for (AnimatorControllerParameter param : parameters) {
-            if (param.name.equals(parameter)) {
-                switch (param.type) {
-                    case Int:
-                        return evaluateInt(param);
-                    case Float:
-                        return evaluateFloat(param);
-                    case Bool:
-                        return evaluateBool(param);
-                    case Trigger:
-                    	return evaluateTrigger(param);
-                }
-            }
+    }
+
+    /**
+     * Constructor.
+     * @param animator
+     */
+    protected AnimatorCondition(AnimatorController animator) {
+        this.animator = animator;
+    }
+
+    /**
+     * InternalCall. Resolves the parameter to its slot in the controller parameter table.
+     * Throws an exception if the parameter is not found or does not support the condition mode.
+     */
+    protected void bind() {
+        resolve();
+        animator.graphChanged();
+    }
+
+    /**
+     * InternalCall. Attaches the condition to the given controller after it
+     * has been read.
+     * @param animator
+     */
+    protected void attach(AnimatorController animator) {
+        this.animator = animator;
+        resolve();
+    }
+
+    private void resolve() {
+        AnimatorControllerParameter param = animator.getParameter(parameter);
+        if (param == null) {
+            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + parameter);
         }
-        
-        return false;
+        if (!isSupported(param.type, mode)) {
+            String error = String.format("AnimatorConditionMode %s is not supported by %s parameter '%s'", mode, param.type, parameter);
+            throw new IllegalArgumentException(error);
+        }
+        parameterId = param.id;
+        parameterType = param.type;
     }
-    
-    private boolean evaluateInt(AnimatorControllerParameter param) {
-        switch (mode) {
-            case Greater:
-                return param.defaultInt > threshold;
-            case Less:
-                return param.defaultInt < threshold;
-            case Equals:
-                return param.defaultInt == threshold;
-            case NotEqual:
-                return param.defaultInt != threshold;
+
+    private static boolean isSupported(AnimatorControllerParameterType type, AnimatorConditionMode mode) {
+        switch (type) {
+            case Int:
+                return mode == AnimatorConditionMode.Greater || mode == AnimatorConditionMode.Less
+                    || mode == AnimatorConditionMode.Equals || mode == AnimatorConditionMode.NotEqual;
+            case Float:
+                return mode == AnimatorConditionMode.Greater || mode == AnimatorConditionMode.Less;
+            case Bool:
+                return mode == AnimatorConditionMode.If || mode == AnimatorConditionMode.IfNot;
+            case Trigger:
+                return mode == AnimatorConditionMode.If;
             default:
                 return false;
         }
     }
-    
-    private boolean evaluateFloat(AnimatorControllerParameter param) {
-        switch (mode) {
-            case Greater:
-                return param.defaultFloat > threshold;
-            case Less:
-                return param.defaultFloat < threshold;
+
+    /**
+     * InternalCall.
+     * @param animator - The controller holding the parameter values.
+     * @param info     - The runtime state of the layer holding the triggers.
+     * @return
+     */
+    protected boolean evalute(AnimatorController animator, AnimatorStateInfo info) {
+        switch (parameterType) {
+            case Int:
+                return evaluateInt(animator.intValues[parameterId]);
+            case Float:
+                return evaluateFloat(animator.floatValues[parameterId]);
+            case Bool:
+                return mode == AnimatorConditionMode.If ? animator.boolValues[parameterId] : !animator.boolValues[parameterId];
+            case Trigger:
+                // the trigger is consumed when the transition is applied
+                return info.triggers.get(parameterId);
             default:
                 return false;
         }
     }
     
-    private boolean evaluateBool(AnimatorControllerParameter param) {
+    private boolean evaluateInt(int value) {
         switch (mode) {
-            case If:
-                return param.defaultBool;
-            case IfNot:
-                return !param.defaultBool;
+            case Greater:
+                return value > threshold;
+            case Less:
+                return value < threshold;
+            case Equals:
+                return value == threshold;
             default:
-                return false;
+                return value != threshold;
         }
     }
     
-    private boolean evaluateTrigger(AnimatorControllerParameter param) {
-        boolean triggered = param.defaultBool;
-        if (triggered) {
-            param.defaultBool = false;
-        }
-        return triggered;
+    private boolean evaluateFloat(float value) {
+        return mode == AnimatorConditionMode.Greater ? value > threshold : value < threshold;
     }
     
     public AnimatorConditionMode getMode() {
@@ -95,6 +141,7 @@ public class AnimatorCondition {
 
     public void setMode(AnimatorConditionMode mode) {
         this.mode = mode;
+        bind();
     }
 
     public String getParameter() {
@@ -103,6 +150,7 @@ public class AnimatorCondition {
 
     public void setParameter(String parameter) {
         this.parameter = parameter;
+        bind();
     }
 
     public float getThreshold() {
@@ -111,6 +159,23 @@ public class AnimatorCondition {
 
     public void setThreshold(float threshold) {
         this.threshold = threshold;
+        animator.graphChanged();
+    }
+
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(mode, "mode", null);
+        oc.write(parameter, "parameter", null);
+        oc.write(threshold, "threshold", 0f);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        mode = ic.readEnum("mode", AnimatorConditionMode.class, null);
+        parameter = ic.readString("parameter", null);
+        threshold = ic.readFloat("threshold", 0f);
     }
 
 }
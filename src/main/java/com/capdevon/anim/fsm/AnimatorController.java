@@ -1,16 +1,33 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import com.capdevon.anim.AvatarMask;
 import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
 import com.jme3.anim.AnimComposer;
 import com.jme3.anim.AnimationMask;
+import com.jme3.anim.SkinningControl;
+import com.jme3.anim.tween.action.Action;
+import com.jme3.anim.tween.action.BlendableAction;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+import com.jme3.math.FastMath;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Spatial;
 import com.jme3.scene.control.AbstractControl;
 
 /**
@@ -21,12 +38,77 @@ import com.jme3.scene.control.AbstractControl;
 public class AnimatorController extends AbstractControl {
 
     private static final Logger logger = Logger.getLogger(AnimatorController.class.getName());
+    //Hands out the level of detail phase of each controller.
+    private static final AtomicInteger lodPhases = new AtomicInteger();
 
     protected AnimComposer animComposer;
     //The layers in the controller.
     protected List<AnimatorControllerLayer> layers = new ArrayList<>();
     //Parameters are used to communicate between scripting and the controller. They are used to drive transitions and blendtrees for example.
     protected List<AnimatorControllerParameter> parameters = new ArrayList<>();
+    //The parameter table, indexed by parameter id.
+    protected AnimatorControllerParameter[] parameterTable = new AnimatorControllerParameter[8];
+    //The number of ids handed out by the parameter table.
+    protected int parameterCount = 0;
+    //The current parameter values, indexed by parameter id. Triggers are held by each layer.
+    protected float[] floatValues = new float[8];
+    protected int[] intValues = new int[8];
+    protected boolean[] boolValues = new boolean[8];
+    //The version of each parameter, updated every time its value changes.
+    protected int[] parameterVersions = new int[8];
+    //The last version assigned to a parameter change.
+    protected int parameterVersion = 0;
+    //Incremented every time a transition or a condition is modified.
+    protected int graphVersion = 0;
+    //The graph version the transitions of the states were last compiled for.
+    private int compiledGraphVersion = -1;
+    //Lookup of the parameters by name.
+    private Map<String, AnimatorControllerParameter> parameterMap = new HashMap<>();
+    //The runtime state of each layer, indexed like the layers.
+    protected AnimatorStateInfo[] layerStates = new AnimatorStateInfo[0];
+    //True if the layers, states and parameters are shared with other controllers and can no longer be modified.
+    protected boolean shared = false;
+    //The system that updates this controller, or null if the controller updates itself.
+    protected AnimatorControllerSystem system;
+    //The animation level of detail, or null to update the state machines every frame.
+    protected AnimatorLod lod;
+    //The level of detail band of the controller.
+    protected int lodBand = 0;
+    //The frames elapsed and the time accumulated since the last update. -1 until the first update with a level of detail.
+    private int lodFrames = -1;
+    private float lodTpf = 0;
+    //The offset of the controller in the frame interval of its band, so the controllers of a band do not all update in the same frame.
+    private final int lodPhase = lodPhases.getAndIncrement() & Integer.MAX_VALUE;
+    //The SkinningControl paused while the model is off-screen.
+    private SkinningControl pausedSkinning;
+    //True if the state machines are updated in the current frame.
+    protected boolean updatePending = false;
+    //The time passed to the state machines in the current frame.
+    protected float updateTpf = 0;
+    //True if the BlendTree weights are not recomputed.
+    protected boolean freezeBlendTrees = false;
+    //True if the actions of the states must still be created in the AnimComposer.
+    protected boolean actionsPending = false;
+    //The metrics of the controller, or null if the metrics are disabled.
+    protected final AnimatorMetrics metrics = AnimatorMetrics.ENABLED ? new AnimatorMetrics() : null;
+    //The number of layer updates skipped because the layer had weight zero.
+    protected long inactiveLayerCount;
+    //The number of layer updates skipped because the layer was hidden by the layers above it.
+    protected long culledLayerCount;
+    //The recorder capturing the inputs of the controller, or null.
+    protected AnimatorRecorder recorder;
+    //The index of the layer being updated, or the number of layers once they are all updated.
+    protected int updatingLayer;
+    //The replayer applying the inputs recorded between the layers of the current update, or null.
+    protected AnimatorReplayer replayer;
+    //True while the graph is saved on its own, without the spatial of the control.
+    protected boolean savingGraph;
+
+    /**
+     * constructor for serialization only
+     */
+    protected AnimatorController() {
+    }
 
     /**
      * Constructor.
@@ -37,9 +119,453 @@ public class AnimatorController extends AbstractControl {
         addLayer(AnimComposer.DEFAULT_LAYER, null);
     }
 
+    /**
+     * Creates a controller sharing the layers, states, transitions, blend
+     * trees and parameters of the given controller. Only the parameter values
+     * and the current state of each layer belong to the new controller, so
+     * many characters can be animated by the same graph. Once shared, the
+     * graph can no longer be modified.
+     *
+     * @param template     - The controller whose graph is shared.
+     * @param animComposer - The AnimComposer of the new controller.
+     */
+    public AnimatorController(AnimatorController template, AnimComposer animComposer) {
+        template.freeze();
+
+        this.animComposer = animComposer;
+        this.shared = true;
+        this.layers = template.layers;
+        this.parameters = template.parameters;
+        this.parameterMap = template.parameterMap;
+        this.parameterTable = template.parameterTable;
+        this.parameterCount = template.parameterCount;
+        this.graphVersion = template.graphVersion;
+
+        int capacity = parameterTable.length;
+        floatValues = new float[capacity];
+        intValues = new int[capacity];
+        boolValues = new boolean[capacity];
+        parameterVersions = new int[capacity];
+        for (int i = 0; i < parameterCount; i++) {
+            AnimatorControllerParameter param = parameterTable[i];
+            if (param != null) {
+                floatValues[i] = param.defaultFloat;
+                intValues[i] = param.defaultInt;
+                boolValues[i] = param.defaultBool;
+            }
+        }
+
+        layerStates = new AnimatorStateInfo[layers.size()];
+        for (int i = 0; i < layerStates.length; i++) {
+            layerStates[i] = new AnimatorStateInfo(layers.get(i), i == 0);
+        }
+        createActions();
+    }
+
+    /**
+     * Creates the layers and the actions of all states in the AnimComposer.
+     * A controller that has been read finds its AnimComposer on its spatial.
+     */
+    private void createActions() {
+        if (animComposer == null) {
+            animComposer = spatial.getControl(AnimComposer.class);
+        }
+        for (int i = 0; i < layers.size(); i++) {
+            AnimatorControllerLayer layer = layers.get(i);
+            if (!animComposer.getLayerNames().contains(layer.name)) {
+                animComposer.makeLayer(layer.name, layer.avatarMask);
+            }
+            layer.stateMachine.createActions(animComposer);
+        }
+        actionsPending = false;
+    }
+
+    /**
+     * InternalCall. Prevents any further modification of the graph, and compiles the
+     * transitions of all states so they can be read concurrently.
+     */
+    protected synchronized void freeze() {
+        if (!shared) {
+            shared = true;
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).stateMachine.compileTransitions();
+            }
+        }
+    }
+
+    /**
+     * InternalCall. Invalidates the transitions compiled from the graph.
+     * Throws an exception if the graph is shared.
+     */
+    protected void graphChanged() {
+        checkEditable();
+        graphVersion++;
+    }
+
+    /**
+     * Throws an exception if the graph is shared.
+     */
+    private void checkEditable() {
+        if (shared) {
+            throw new IllegalStateException("AnimatorController is shared and cannot be modified");
+        }
+    }
+
+    /**
+     * Returns true if the layers, states and parameters of this controller
+     * are shared with other controllers.
+     * @return
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Disabling the controller resumes the SkinningControl paused by the
+     * level of detail.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        if (!enabled) {
+            setSkinningPaused(false);
+        }
+    }
+
+    /**
+     * Removing the controller from its spatial resumes the SkinningControl
+     * paused by the level of detail.
+     */
+    @Override
+    public void setSpatial(Spatial spatial) {
+        if (spatial == null) {
+            setSkinningPaused(false);
+        }
+        super.setSpatial(spatial);
+    }
+
     @Override
     protected void controlUpdate(float tpf) {
-        layers.forEach(layer -> layer.stateMachine.update(tpf));
+        if (system == null) {
+            updateLayers(tpf);
+        }
+    }
+
+    /**
+     * InternalCall. Updates the state machines of all layers.
+     * @param tpf
+     */
+    protected void updateLayers(float tpf) {
+        if (prepareUpdate(tpf)) {
+            for (int i = 0; i < layers.size(); i++) {
+                updatingLayer = i;
+                if (isLayerActive(i)) {
+                    layers.get(i).stateMachine.update(this, layerStates[i], updateTpf);
+                }
+                advanceLayerTime(layerStates[i], updateTpf);
+                if (replayer != null) {
+                    replayer.layerUpdated(i);
+                }
+            }
+            updatingLayer = layers.size();
+            resetTriggers();
+            if (AnimatorMetrics.ENABLED) {
+                metrics.endUpdate(updateTpf);
+            }
+            if (recorder != null) {
+                recorder.endUpdate();
+            }
+        }
+    }
+
+    /**
+     * InternalCall. Applies the level of detail and decides whether the state
+     * machines are updated in the current frame.
+     * @param tpf
+     * @return true if the state machines must be updated
+     */
+    protected boolean prepareUpdate(float tpf) {
+        if (actionsPending) {
+            createActions();
+        }
+
+        if (lod == null) {
+            updateTpf = tpf;
+            updatePending = true;
+            beginUpdate();
+            return true;
+        }
+
+        lodBand = lod.selectBand(spatial);
+        int frameInterval = 1;
+        freezeBlendTrees = false;
+        if (lod.getBandCount() > 0) {
+            AnimatorLod.LodBand band = lod.getBand(lodBand);
+            frameInterval = band.frameInterval;
+            freezeBlendTrees = band.freezeBlendTrees;
+        }
+
+        boolean offscreen = false;
+        if (lod.isPauseSkinningOffscreen()) {
+            offscreen = lod.isOffscreen(spatial);
+            setSkinningPaused(offscreen);
+        }
+
+        lodTpf += tpf;
+        if (lodFrames < 0) {
+            lodFrames = lodPhase % frameInterval;
+        }
+        updatePending = ++lodFrames >= frameInterval;
+        if (updatePending) {
+            updateTpf = lodTpf;
+            lodTpf = 0;
+            lodFrames = 0;
+        }
+
+        lod.record(lodBand, updatePending, offscreen);
+        if (updatePending) {
+            beginUpdate();
+        }
+        return updatePending;
+    }
+
+    /**
+     * Prepares everything the evaluation of the transitions reads, so the
+     * evaluation itself never writes to the controller or to the graph: the
+     * triggers of the update, the compiled transitions and the layer weights.
+     */
+    private void beginUpdate() {
+        snapshotTriggers();
+        if (recorder != null) {
+            recorder.beginUpdate(updateTpf);
+        }
+        if (!shared && compiledGraphVersion != graphVersion) {
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).stateMachine.compileTransitions();
+            }
+            compiledGraphVersion = graphVersion;
+        }
+        refreshLayers();
+    }
+
+    /**
+     * Reads the weight of each layer from its parameter, and culls the layers
+     * hidden by the layers above them. The layers are visited from the top,
+     * so a culled layer never hides the layers below it.
+     */
+    private void refreshLayers() {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            AnimatorControllerLayer layer = layers.get(i);
+            AnimatorStateInfo info = layerStates[i];
+            if (i > 0 && layer.weightParameterId >= 0) {
+                info.weight = FastMath.clamp(floatValues[layer.weightParameterId], 0f, 1f);
+            }
+
+            info.culled = info.weight > 0 && isOccluded(layer);
+            if (info.weight <= 0) {
+                inactiveLayerCount++;
+            } else if (info.culled) {
+                culledLayerCount++;
+            }
+
+            info.layerAction.setWeight(info.culled ? 0f : info.weight);
+            info.layerAction.setAdditive(i > 0 && layer.blendingMode == AnimatorLayerBlendingMode.Additive);
+        }
+    }
+
+    /**
+     * Returns true if one of the layers covering the mask of the given layer
+     * is fully overriding the pose in the current frame.
+     * @param layer
+     * @return
+     */
+    private boolean isOccluded(AnimatorControllerLayer layer) {
+        int[] occluders = layer.occluders;
+        for (int i = 0; i < occluders.length; i++) {
+            AnimatorStateInfo upper = layerStates[occluders[i]];
+            if (upper.weight >= 1 && !upper.culled
+                    && layers.get(occluders[i]).blendingMode == AnimatorLayerBlendingMode.Override
+                    && upper.layerAction.isTransitionComplete()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advances the normalized time of the current state of the layer, the
+     * same way the AnimLayer advances the time of its action, and ends the
+     * transition in progress once its duration has elapsed. A state without
+     * animation counts as lasting one second.
+     * @param info
+     * @param tpf
+     */
+    private void advanceLayerTime(AnimatorStateInfo info, float tpf) {
+        Action action = info.layerAction.getAction();
+        double time = tpf;
+        if (action != null && action.getLength() > 0) {
+            time *= action.getSpeed() * animComposer.getGlobalSpeed();
+            info.normalizedTime += time / action.getLength();
+        } else {
+            info.normalizedTime += time;
+        }
+
+        if (info.activeTransition != null) {
+            info.transitionTime += time;
+            if (info.transitionTime >= info.activeTransition.duration) {
+                info.activeTransition = null;
+                info.previousState = null;
+            }
+        }
+    }
+
+    private boolean isLayerActive(int index) {
+        AnimatorStateInfo info = layerStates[index];
+        return info.weight > 0 && !info.culled;
+    }
+
+    /**
+     * Computes which layers can hide each layer, from the masks of the layers.
+     * A layer without mask covers every layer below it. A layer with an
+     * AvatarMask covers the layers whose AvatarMask contains only joints of
+     * its own mask. Call this method after modifying the mask of a layer.
+     */
+    public void updateLayerCoverage() {
+        checkEditable();
+        for (int i = 0; i < layers.size(); i++) {
+            AnimatorControllerLayer layer = layers.get(i);
+            int count = 0;
+            int[] occluders = new int[layers.size() - i - 1];
+            for (int j = i + 1; j < layers.size(); j++) {
+                if (covers(layers.get(j).avatarMask, layer.avatarMask)) {
+                    occluders[count++] = j;
+                }
+            }
+            layer.occluders = Arrays.copyOf(occluders, count);
+        }
+    }
+
+    private boolean covers(AnimationMask upper, AnimationMask lower) {
+        if (upper == null) {
+            return true;
+        }
+        if (upper instanceof AvatarMask && lower instanceof AvatarMask) {
+            return ((AvatarMask) upper).containsAll((AvatarMask) lower);
+        }
+        // the joints of any other mask are unknown
+        return false;
+    }
+
+    /**
+     * Returns the metrics of this controller, or null if the metrics are
+     * disabled. See {@link AnimatorMetrics#ENABLED}.
+     * @return
+     */
+    public AnimatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Resets the counters of the skipped layer updates.
+     */
+    public void resetStats() {
+        inactiveLayerCount = 0;
+        culledLayerCount = 0;
+    }
+
+    /**
+     * Returns the number of layer updates skipped because the layer had weight zero.
+     * @return
+     */
+    public long getInactiveLayerCount() {
+        return inactiveLayerCount;
+    }
+
+    /**
+     * Returns the number of layer updates skipped because the layer was
+     * hidden by the layers above it.
+     * @return
+     */
+    public long getCulledLayerCount() {
+        return culledLayerCount;
+    }
+
+    /**
+     * InternalCall. Pauses or resumes the SkinningControl of the model.
+     * @param paused
+     */
+    protected void setSkinningPaused(boolean paused) {
+        if (paused && pausedSkinning == null) {
+            SkinningControl skinning = animComposer.getSpatial().getControl(SkinningControl.class);
+            if (skinning != null && skinning.isEnabled()) {
+                skinning.setEnabled(false);
+                pausedSkinning = skinning;
+            }
+        } else if (!paused && pausedSkinning != null) {
+            pausedSkinning.setEnabled(true);
+            pausedSkinning = null;
+        }
+    }
+
+    /**
+     * InternalCall. Evaluates the transitions of all layers without touching
+     * the AnimComposer. Only the evaluation result kept by the AnimatorStateInfo
+     * of each layer is written, so this can run on a worker thread once
+     * {@link #prepareUpdate} has run on the render thread.
+     */
+    protected void evaluateTransitions() {
+        for (int i = 0; i < layers.size(); i++) {
+            if (isLayerActive(i)) {
+                layers.get(i).stateMachine.evaluateTransitions(this, layerStates[i]);
+            }
+        }
+    }
+
+    /**
+     * InternalCall. Applies the evaluated transitions of all layers.
+     */
+    protected void applyTransitions() {
+        for (int i = 0; i < layers.size(); i++) {
+            updatingLayer = i;
+            if (isLayerActive(i)) {
+                layers.get(i).stateMachine.applyTransition(this, layerStates[i], updateTpf);
+            }
+            advanceLayerTime(layerStates[i], updateTpf);
+        }
+        updatingLayer = layers.size();
+        resetTriggers();
+        if (AnimatorMetrics.ENABLED) {
+            metrics.endUpdate(updateTpf);
+        }
+        if (recorder != null) {
+            recorder.endUpdate();
+        }
+    }
+
+    /**
+     * Sets the animation level of detail. The same AnimatorLod can be shared
+     * by many controllers.
+     * @param lod the level of detail, or null to update the state machines every frame.
+     */
+    public void setLod(AnimatorLod lod) {
+        this.lod = lod;
+        lodFrames = -1;
+        lodTpf = 0;
+        lodBand = 0;
+        freezeBlendTrees = false;
+        setSkinningPaused(false);
+    }
+
+    public AnimatorLod getLod() {
+        return lod;
+    }
+
+    /**
+     * Returns the level of detail band currently assigned to this controller.
+     * @return
+     */
+    public int getLodBand() {
+        return lodBand;
     }
 
     @Override
@@ -54,13 +580,18 @@ public class AnimatorController extends AbstractControl {
      * @return 
      */
     public AnimatorControllerLayer addLayer(String name, AnimationMask mask) {
+        checkEditable();
         AnimatorControllerLayer layer = new AnimatorControllerLayer();
         layer.name = name;
         layer.avatarMask = mask;
         layer.stateMachine = new AnimatorStateMachine(this);
         layer.stateMachine.layerName = layer.name;
+        layer.attach(this);
         layers.add(layer);
+        layerStates = Arrays.copyOf(layerStates, layers.size());
+        layerStates[layerStates.length - 1] = new AnimatorStateInfo(layer, layerStates.length == 1);
         animComposer.makeLayer(name, mask);
+        updateLayerCoverage();
         return layer;
     }
 
@@ -69,10 +600,108 @@ public class AnimatorController extends AbstractControl {
      * @param layer
      */
     public void removeLayer(AnimatorControllerLayer layer) {
-        layers.remove(layer);
-        animComposer.removeLayer(layer.name);
+        checkEditable();
+        int index = layers.indexOf(layer);
+        if (index >= 0) {
+            layers.remove(index);
+            AnimatorStateInfo[] states = new AnimatorStateInfo[layers.size()];
+            System.arraycopy(layerStates, 0, states, 0, index);
+            System.arraycopy(layerStates, index + 1, states, index, states.length - index);
+            layerStates = states;
+            animComposer.removeLayer(layer.name);
+            updateLayerCoverage();
+        }
+    }
+
+    /**
+     * Returns the runtime state of the layer at the given index.
+     * @param layerIndex
+     * @return
+     */
+    public AnimatorStateInfo getCurrentAnimatorStateInfo(int layerIndex) {
+        return layerStates[layerIndex];
     }
     
+    /**
+     * Sets the weight of the layer at the given index. The weight of the base
+     * layer is always 1. A layer with weight zero is not evaluated at all.
+     * @param layerIndex
+     * @param weight - The weight, between 0 and 1.
+     */
+    public void setLayerWeight(int layerIndex, float weight) {
+        if (weight < 0 || weight > 1) {
+            throw new IllegalArgumentException("Layer weight must be between 0 and 1: " + weight);
+        }
+        if (layerIndex > 0) {
+            layerStates[layerIndex].weight = weight;
+            if (recorder != null) {
+                recorder.recordLayerWeight(layerIndex, weight);
+            }
+        }
+    }
+
+    public float getLayerWeight(int layerIndex) {
+        return layerStates[layerIndex].weight;
+    }
+
+    /**
+     * Makes the given state the current state of the layer and starts it at
+     * the given normalized time, without blending and without evaluating the
+     * transitions. Any transition in progress is dropped. This is the way to
+     * force the state of a layer, for example to apply the state received
+     * from a server.
+     * @param layerIndex
+     * @param state - A state of the layer.
+     * @param normalizedTime - The normalized time of the state. The integer part is the number of completed loops.
+     */
+    public void play(int layerIndex, AnimatorState state, double normalizedTime) {
+        AnimatorControllerLayer layer = layers.get(layerIndex);
+        AnimatorState[] table = layer.getStateTable(this);
+        if (state.stateIndex < 0 || state.stateIndex >= table.length || table[state.stateIndex] != state) {
+            String error = String.format("State '%s' does not belong to layer %s", state.name, layer.name);
+            throw new IllegalArgumentException(error);
+        }
+        if (recorder != null) {
+            recorder.recordPlay(layerIndex, state, normalizedTime);
+        }
+        layer.stateMachine.play(this, layerStates[layerIndex], state, normalizedTime);
+    }
+
+    /**
+     * InternalCall. Plays the given action on the layer, through the action
+     * blending the layer with the layers below it.
+     * @param info - The runtime state of the layer.
+     * @param animName
+     */
+    protected void setCurrentAction(AnimatorStateInfo info, String animName) {
+        BlendableAction action = (BlendableAction) animComposer.getAction(animName);
+        info.layerAction.setAction(action);
+        info.layerAction.setTransitionLength(action.getTransitionLength());
+        animComposer.getLayer(info.layerName).setCurrentAction(info.layerAction);
+    }
+
+    /**
+     * InternalCall. Removes the action played by the layer.
+     * @param info - The runtime state of the layer.
+     */
+    protected void removeCurrentAction(AnimatorStateInfo info) {
+        info.layerAction.setAction(null);
+        animComposer.removeCurrentAction(info.layerName);
+    }
+
+    /**
+     * InternalCall. Returns the action played by the layer.
+     * @param info - The runtime state of the layer.
+     * @return
+     */
+    protected Action getCurrentAction(AnimatorStateInfo info) {
+        Action action = animComposer.getCurrentAction(info.layerName);
+        if (action == info.layerAction) {
+            return info.layerAction.getAction();
+        }
+        return action;
+    }
+
     public AnimatorControllerLayer getLayer(int index) {
     	return layers.get(index);
     }
@@ -100,21 +729,52 @@ public class AnimatorController extends AbstractControl {
      * Utility function to add a parameter to the controller.
      * @param name - The name of the parameter.
      * @param type - The type of the parameter.
+     * @return the id of the parameter, usable with the int overloads of the setters and getters.
      */
-    public void addParameter(String name, AnimatorControllerParameterType type) {
+    public int addParameter(String name, AnimatorControllerParameterType type) {
+        checkEditable();
+        if (parameterMap.containsKey(name)) {
+            String error = String.format("Parameter '%s' already exists in controller", name);
+            throw new IllegalArgumentException(error);
+        }
+
         AnimatorControllerParameter param = new AnimatorControllerParameter();
         param.name = name;
         param.type = type;
         param.nameHash = name.hashCode();
+        param.id = parameterCount++;
+        ensureCapacity(parameterCount);
+
+        parameterTable[param.id] = param;
+        floatValues[param.id] = param.defaultFloat;
+        intValues[param.id] = param.defaultInt;
+        boolValues[param.id] = param.defaultBool;
+
         parameters.add(param);
+        parameterMap.put(name, param);
+        return param.id;
     }
 
     /**
      * Utility function to remove a parameter from the controller.
+     * The id of the removed parameter is never reused. Throws an exception if
+     * a layer weight, a condition or a blend tree still reads the parameter.
      * @param param - The AnimatorParameter.
      */
     public void removeParameter(AnimatorControllerParameter param) {
-        parameters.remove(param);
+        checkEditable();
+        if (parameters.contains(param)) {
+            for (AnimatorControllerLayer layer : layers) {
+                if (param.name.equals(layer.weightParameter) || layer.stateMachine.usesParameter(param.name)) {
+                    String error = String.format("Parameter '%s' is still used by layer %s", param.name, layer.name);
+                    throw new IllegalArgumentException(error);
+                }
+            }
+            parameters.remove(param);
+            parameterMap.remove(param.name);
+            parameterTable[param.id] = null;
+            graphChanged();
+        }
     }
 
     /**
@@ -123,12 +783,21 @@ public class AnimatorController extends AbstractControl {
      * @return the parameter
      */
     public AnimatorControllerParameter getParameter(String name) {
-        for (AnimatorControllerParameter param : parameters) {
-            if (param.nameHash == name.hashCode()) {
-                return param;
-            }
+        return parameterMap.get(name);
+    }
+
+    /**
+     * Returns the id of the parameter with the given name.
+     * Throws an exception if the parameter is not found.
+     * @param name
+     * @return the id of the parameter
+     */
+    public int getParameterId(String name) {
+        AnimatorControllerParameter param = parameterMap.get(name);
+        if (param == null) {
+            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + name);
         }
-        return null;
+        return param.id;
     }
     
     /**
@@ -141,14 +810,32 @@ public class AnimatorController extends AbstractControl {
     	return Collections.unmodifiableCollection(parameters);
     }
 
+    /**
+     * Returns the system that updates this controller, or null if the
+     * controller is updated by its own controlUpdate.
+     * @return
+     */
+    public AnimatorControllerSystem getSystem() {
+        return system;
+    }
+
     /**
      * Returns the value of the given float parameter.
      * @param name
      * @return
      */
     public float getFloat(String name) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Float);
-        return param.defaultFloat;
+        return floatValues[findParameter(name, AnimatorControllerParameterType.Float)];
+    }
+
+    /**
+     * Returns the value of the given float parameter.
+     * @param id - The parameter id.
+     * @return
+     */
+    public float getFloat(int id) {
+        checkParameter(id, AnimatorControllerParameterType.Float);
+        return floatValues[id];
     }
 
     /**
@@ -157,8 +844,17 @@ public class AnimatorController extends AbstractControl {
      * @param value
      */
     public void setFloat(String name, float value) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Float);
-        param.defaultFloat = value;
+        writeFloat(findParameter(name, AnimatorControllerParameterType.Float), value);
+    }
+
+    /**
+     * Send float values to the Animator to affect transitions.
+     * @param id - The parameter id.
+     * @param value
+     */
+    public void setFloat(int id, float value) {
+        checkParameter(id, AnimatorControllerParameterType.Float);
+        writeFloat(id, value);
     }
 
     /**
@@ -167,8 +863,17 @@ public class AnimatorController extends AbstractControl {
      * @return
      */
     public int getInt(String name) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Int);
-        return param.defaultInt;
+        return intValues[findParameter(name, AnimatorControllerParameterType.Int)];
+    }
+
+    /**
+     * Returns the value of the given integer parameter.
+     * @param id - The parameter id.
+     * @return
+     */
+    public int getInt(int id) {
+        checkParameter(id, AnimatorControllerParameterType.Int);
+        return intValues[id];
     }
 
     /**
@@ -177,8 +882,17 @@ public class AnimatorController extends AbstractControl {
      * @param value
      */
     public void setInt(String name, int value) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Int);
-        param.defaultInt = value;
+        writeInt(findParameter(name, AnimatorControllerParameterType.Int), value);
+    }
+
+    /**
+     * Sets the value of the given integer parameter.
+     * @param id - The parameter id.
+     * @param value
+     */
+    public void setInt(int id, int value) {
+        checkParameter(id, AnimatorControllerParameterType.Int);
+        writeInt(id, value);
     }
 
     /**
@@ -187,8 +901,17 @@ public class AnimatorController extends AbstractControl {
      * @return
      */
     public boolean getBool(String name) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Bool);
-        return param.defaultBool;
+        return boolValues[findParameter(name, AnimatorControllerParameterType.Bool)];
+    }
+
+    /**
+     * Returns the value of the given boolean parameter.
+     * @param id - The parameter id.
+     * @return
+     */
+    public boolean getBool(int id) {
+        checkParameter(id, AnimatorControllerParameterType.Bool);
+        return boolValues[id];
     }
 
     /**
@@ -197,39 +920,235 @@ public class AnimatorController extends AbstractControl {
      * @param value
      */
     public void setBool(String name, boolean value) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Bool);
-        param.defaultBool = value;
+        writeBool(findParameter(name, AnimatorControllerParameterType.Bool), value);
     }
 
     /**
-     * Sets the value of the given trigger parameter.
+     * Sets the value of the given boolean parameter.
+     * @param id - The parameter id.
+     * @param value
+     */
+    public void setBool(int id, boolean value) {
+        checkParameter(id, AnimatorControllerParameterType.Bool);
+        writeBool(id, value);
+    }
+
+    /**
+     * Sets the value of the given trigger parameter in all layers. Each layer
+     * consumes the trigger when one of its transitions using it is taken.
+     * The triggers not consumed are reset at the end of the next update.
      * @param name
      */
     public void setTrigger(String name) {
-        AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Trigger);
-        param.defaultBool = true;
+        writeTrigger(findParameter(name, AnimatorControllerParameterType.Trigger), true);
+    }
+
+    /**
+     * Sets the value of the given trigger parameter in all layers.
+     * @param id - The parameter id.
+     */
+    public void setTrigger(int id) {
+        checkParameter(id, AnimatorControllerParameterType.Trigger);
+        writeTrigger(id, true);
     }
     
     /**
-     * Resets the value of the given trigger parameter.
+     * Resets the value of the given trigger parameter in all layers.
      * @param name
      */
     public void resetTrigger(String name) {
-    	AnimatorControllerParameter param = findParameter(name, AnimatorControllerParameterType.Trigger);
-        param.defaultBool = false;
+        writeTrigger(findParameter(name, AnimatorControllerParameterType.Trigger), false);
     }
 
     /**
-     * Find a parameter with the given name. 
-     * Throws an exception if the parameter is not found.
+     * Resets the value of the given trigger parameter in all layers.
+     * @param id - The parameter id.
+     */
+    public void resetTrigger(int id) {
+        checkParameter(id, AnimatorControllerParameterType.Trigger);
+        writeTrigger(id, false);
+    }
+
+    /**
+     * Returns true if the given trigger is set and not yet consumed by the layer.
+     * @param id         - The parameter id.
+     * @param layerIndex
+     * @return
+     */
+    public boolean isTriggerPending(int id, int layerIndex) {
+        checkParameter(id, AnimatorControllerParameterType.Trigger);
+        return layerStates[layerIndex].triggers.get(id);
+    }
+
+    /**
+     * Stores the value and updates the parameter version if the value changed.
      */
-    private AnimatorControllerParameter findParameter(String name, AnimatorControllerParameterType type) {
-        for (AnimatorControllerParameter param : parameters) {
-            if (param.nameHash == name.hashCode() && param.type == type) {
-                return param;
+    private void writeFloat(int id, float value) {
+        if (floatValues[id] != value) {
+            floatValues[id] = value;
+            parameterVersions[id] = ++parameterVersion;
+            if (recorder != null) {
+                recorder.recordFloat(id, value);
             }
         }
-        throw new IllegalArgumentException("AnimatorControllerParameter not found: " + name);
+    }
+
+    private void writeInt(int id, int value) {
+        if (intValues[id] != value) {
+            intValues[id] = value;
+            parameterVersions[id] = ++parameterVersion;
+            if (recorder != null) {
+                recorder.recordInt(id, value);
+            }
+        }
+    }
+
+    private void writeBool(int id, boolean value) {
+        if (boolValues[id] != value) {
+            boolValues[id] = value;
+            parameterVersions[id] = ++parameterVersion;
+            if (recorder != null) {
+                recorder.recordBool(id, value);
+            }
+        }
+    }
+
+    private void writeTrigger(int id, boolean value) {
+        boolean changed = false;
+        for (int i = 0; i < layerStates.length; i++) {
+            BitSet triggers = layerStates[i].triggers;
+            if (triggers.get(id) != value) {
+                triggers.set(id, value);
+                changed = true;
+            }
+            BitSet updateTriggers = layerStates[i].updateTriggers;
+            if (value && updateTriggers.get(id)) {
+                // raised again during the update, kept for the next one
+                updateTriggers.clear(id);
+                changed = true;
+            }
+        }
+        if (changed) {
+            parameterVersions[id] = ++parameterVersion;
+            if (recorder != null) {
+                recorder.recordTrigger(id, value);
+            }
+        }
+    }
+
+    /**
+     * Remembers the triggers pending at the start of an update, the only ones
+     * reset at its end.
+     */
+    private void snapshotTriggers() {
+        for (int i = 0; i < layerStates.length; i++) {
+            AnimatorStateInfo info = layerStates[i];
+            info.updateTriggers.clear();
+            info.updateTriggers.or(info.triggers);
+        }
+    }
+
+    /**
+     * InternalCall. Resets the triggers of all layers at the end of an update.
+     * The triggers raised during the update, for example by a
+     * StateMachineBehaviour, are kept for the next update.
+     */
+    protected void resetTriggers() {
+        for (int i = 0; i < layerStates.length; i++) {
+            AnimatorStateInfo info = layerStates[i];
+            info.triggers.andNot(info.updateTriggers);
+            info.updateTriggers.clear();
+        }
+    }
+
+    /**
+     * Find the id of the parameter with the given name. 
+     * Throws an exception if the parameter is not found.
+     */
+    private int findParameter(String name, AnimatorControllerParameterType type) {
+        AnimatorControllerParameter param = parameterMap.get(name);
+        if (param == null || param.type != type) {
+            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + name);
+        }
+        return param.id;
+    }
+
+    /**
+     * Throws an exception if the id does not refer to a parameter of the given type.
+     */
+    private void checkParameter(int id, AnimatorControllerParameterType type) {
+        AnimatorControllerParameter param = (id >= 0 && id < parameterCount) ? parameterTable[id] : null;
+        if (param == null || param.type != type) {
+            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + id);
+        }
+    }
+
+    /**
+     * Grows the parameter table to hold at least the given number of parameters.
+     */
+    private void ensureCapacity(int size) {
+        if (size > parameterTable.length) {
+            int capacity = Math.max(size, parameterTable.length * 2);
+            parameterTable = Arrays.copyOf(parameterTable, capacity);
+            floatValues = Arrays.copyOf(floatValues, capacity);
+            intValues = Arrays.copyOf(intValues, capacity);
+            boolValues = Arrays.copyOf(boolValues, capacity);
+            parameterVersions = Arrays.copyOf(parameterVersions, capacity);
+        }
     }
     
+    /**
+     * Writes the layers, the state machines and the parameters with their
+     * default values. The AnimComposer, the level of detail and the
+     * behaviours are not saved, nor the spatial when the graph is saved
+     * with {@link AnimatorControllerIO}.
+     */
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        if (savingGraph) {
+            oc.write(enabled, "enabled", true);
+        } else {
+            super.write(ex);
+        }
+        oc.write(Arrays.copyOf(parameterTable, parameterCount), "parameterTable", null);
+        oc.writeSavableArrayList(new ArrayList<>(layers), "layers", null);
+    }
+
+    /**
+     * Reads the controller. The actions are created in the AnimComposer of
+     * the spatial at the first update.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(JmeImporter im) throws IOException {
+        super.read(im);
+        InputCapsule ic = im.getCapsule(this);
+
+        Savable[] table = ic.readSavableArray("parameterTable", new Savable[0]);
+        parameterCount = table.length;
+        ensureCapacity(parameterCount);
+        for (int i = 0; i < parameterCount; i++) {
+            AnimatorControllerParameter param = (AnimatorControllerParameter) table[i];
+            if (param != null) {
+                parameterTable[i] = param;
+                floatValues[i] = param.defaultFloat;
+                intValues[i] = param.defaultInt;
+                boolValues[i] = param.defaultBool;
+                parameters.add(param);
+                parameterMap.put(param.name, param);
+            }
+        }
+
+        layers = ic.readSavableArrayList("layers", new ArrayList<>());
+        layerStates = new AnimatorStateInfo[layers.size()];
+        for (int i = 0; i < layerStates.length; i++) {
+            AnimatorControllerLayer layer = layers.get(i);
+            layer.attach(this);
+            layerStates[i] = new AnimatorStateInfo(layer, i == 0);
+        }
+        updateLayerCoverage();
+        actionsPending = true;
+    }
+
 }
@@ -0,0 +1,47 @@
+package com.capdevon.anim.fsm;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.jme3.export.binary.BinaryExporter;
+import com.jme3.export.binary.BinaryImporter;
+
+/**
+ * Saves and loads AnimatorController graphs in the jME binary (J3O) format.
+ * A loaded controller is usually used as a template, see
+ * {@link AnimatorController#AnimatorController(AnimatorController, com.jme3.anim.AnimComposer)}.
+ *
+ * @author capdevon
+ */
+public class AnimatorControllerIO {
+
+    private AnimatorControllerIO() {
+    }
+
+    /**
+     * Saves the graph of the given controller. The spatial of the controller
+     * is not saved.
+     * @param animator
+     * @param file
+     * @throws IOException
+     */
+    public static void save(AnimatorController animator, File file) throws IOException {
+        animator.savingGraph = true;
+        try {
+            BinaryExporter.getInstance().save(animator, file);
+        } finally {
+            animator.savingGraph = false;
+        }
+    }
+
+    /**
+     * Loads a controller saved with {@link #save(AnimatorController, File)}.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static AnimatorController load(File file) throws IOException {
+        return (AnimatorController) BinaryImporter.getInstance().load(file);
+    }
+
+}
@@ -1,13 +1,27 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
 import com.jme3.anim.AnimationMask;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 
 /**
  * The Animation Layer contains a state machine that controls animations of a model or part of it.
  * 
  * @author capdevon
  */
-public class AnimatorControllerLayer {
+public class AnimatorControllerLayer implements Savable {
+
+    private static final Logger logger = Logger.getLogger(AnimatorControllerLayer.class.getName());
 
     //The name of the layer.
     protected String name;
@@ -15,6 +29,20 @@ public class AnimatorControllerLayer {
     protected AnimatorStateMachine stateMachine;
     //The AvatarMask that is used to mask the animation on the given layer.
     protected AnimationMask avatarMask;
+    //The default weight of the layer. The base layer always has weight 1.
+    protected float defaultWeight = 1f;
+    //The name and id of the Float parameter driving the weight of the layer, or null.
+    protected String weightParameter;
+    protected int weightParameterId = -1;
+    //The blending mode used by the layer.
+    protected AnimatorLayerBlendingMode blendingMode = AnimatorLayerBlendingMode.Override;
+    //The indices of the layers above this one whose mask covers the mask of this layer.
+    protected int[] occluders = new int[0];
+    //The states of the layer sorted by path, indexed by AnimatorState.stateIndex. Index 0 is the Entry node.
+    protected AnimatorState[] stateTable;
+    private int stateTableVersion = -1;
+    //The controller owning the layer.
+    private AnimatorController animator;
 
     /**
      * Constructor.
@@ -34,4 +62,124 @@ public class AnimatorControllerLayer {
         return avatarMask;
     }
 
+    public float getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * Sets the weight of the layer in new controllers. Use
+     * {@link AnimatorController#setLayerWeight(int, float)} to change the
+     * weight of a running controller.
+     * @param defaultWeight
+     */
+    public void setDefaultWeight(float defaultWeight) {
+        animator.graphChanged();
+        this.defaultWeight = defaultWeight;
+    }
+
+    public String getWeightParameter() {
+        return weightParameter;
+    }
+
+    /**
+     * Drives the weight of the layer with a Float parameter.
+     * @param weightParameter - The name of the parameter, or null to use the weight set on the controller.
+     * @throws IllegalArgumentException if the parameter is not found or is not a Float.
+     */
+    public void setWeightParameter(String weightParameter) {
+        animator.graphChanged();
+        this.weightParameterId = (weightParameter != null) ? resolveWeightParameter(weightParameter) : -1;
+        this.weightParameter = weightParameter;
+    }
+
+    private int resolveWeightParameter(String name) {
+        AnimatorControllerParameter param = animator.getParameter(name);
+        if (param == null) {
+            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + name);
+        }
+        if (param.type != AnimatorControllerParameterType.Float) {
+            String error = String.format("Layer weight parameter '%s' must be Float, not %s", name, param.type);
+            throw new IllegalArgumentException(error);
+        }
+        return param.id;
+    }
+
+    public AnimatorLayerBlendingMode getBlendingMode() {
+        return blendingMode;
+    }
+
+    public void setBlendingMode(AnimatorLayerBlendingMode blendingMode) {
+        animator.graphChanged();
+        this.blendingMode = blendingMode;
+    }
+
+    /**
+     * InternalCall. Binds the layer to the controller owning it.
+     * @param animator
+     */
+    protected void attach(AnimatorController animator) {
+        this.animator = animator;
+        if (weightParameter != null) {
+            weightParameterId = resolveWeightParameter(weightParameter);
+        }
+        stateMachine.attach(animator);
+    }
+
+    /**
+     * InternalCall. Returns the states of the layer in an order that depends
+     * only on the graph, so that two controllers built from the same graph
+     * agree on the index of each state. Index 0 is the AnyState of the root
+     * state machine, the state of a layer that has not started yet.
+     * @param animator - The controller running the layer.
+     * @return
+     */
+    protected synchronized AnimatorState[] getStateTable(AnimatorController animator) {
+        if (stateTable == null || stateTableVersion != animator.graphVersion) {
+            Map<String, AnimatorState> sorted = new TreeMap<>();
+            stateMachine.collectStates("", sorted);
+
+            AnimatorState[] table = new AnimatorState[sorted.size() + 1];
+            table[0] = stateMachine.anyState;
+            int i = 1;
+            for (AnimatorState state : sorted.values()) {
+                table[i++] = state;
+            }
+            for (i = 0; i < table.length; i++) {
+                table[i].stateIndex = i;
+            }
+            stateTable = table;
+            stateTableVersion = animator.graphVersion;
+        }
+        return stateTable;
+    }
+
+    /**
+     * Writes the layer. The mask is saved only if it is Savable.
+     */
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(name, "name", null);
+        oc.write(stateMachine, "stateMachine", null);
+        if (avatarMask instanceof Savable) {
+            oc.write((Savable) avatarMask, "avatarMask", null);
+        } else if (avatarMask != null) {
+            logger.log(Level.WARNING, "AnimationMask of layer {0} is not Savable", name);
+        }
+        oc.write(defaultWeight, "defaultWeight", 1f);
+        oc.write(weightParameter, "weightParameter", null);
+        oc.write(blendingMode, "blendingMode", AnimatorLayerBlendingMode.Override);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        name = ic.readString("name", null);
+        stateMachine = (AnimatorStateMachine) ic.readSavable("stateMachine", null);
+        avatarMask = (AnimationMask) ic.readSavable("avatarMask", null);
+        defaultWeight = ic.readFloat("defaultWeight", 1f);
+        weightParameter = ic.readString("weightParameter", null);
+        blendingMode = ic.readEnum("blendingMode", AnimatorLayerBlendingMode.class, AnimatorLayerBlendingMode.Override);
+    }
+
 }
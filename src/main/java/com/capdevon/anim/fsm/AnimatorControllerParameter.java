@@ -5,19 +5,27 @@
  */
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
+
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+
 /**
  * Used to communicate between scripting and the controller.
  * They are used to drive transitions.
  *
  * @author capdevon
  */
-public class AnimatorControllerParameter {
+public class AnimatorControllerParameter implements Savable {
 
     public enum AnimatorControllerParameterType {
         Float, Int, Bool, Trigger
     }
 
-    //The default bool value for the parameter.
+    //The default bool value for the parameter. The current values are stored in the AnimatorController parameter table.
     protected boolean defaultBool = false;
     //The default float value for the parameter.
     protected float defaultFloat = 0f;
@@ -29,5 +37,49 @@ public class AnimatorControllerParameter {
     protected int nameHash;
     //The type of the parameter.
     protected AnimatorControllerParameterType type;
-    
+    //The handle of the parameter in the controller parameter table.
+    protected int id = -1;
+
+    /**
+     * Constructor.
+     */
+    public AnimatorControllerParameter() {
+        //default empty.
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public AnimatorControllerParameterType getType() {
+        return type;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(name, "name", null);
+        oc.write(type, "type", null);
+        oc.write(id, "id", -1);
+        oc.write(defaultBool, "defaultBool", false);
+        oc.write(defaultFloat, "defaultFloat", 0f);
+        oc.write(defaultInt, "defaultInt", 0);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        name = ic.readString("name", null);
+        type = ic.readEnum("type", AnimatorControllerParameterType.class, null);
+        id = ic.readInt("id", -1);
+        defaultBool = ic.readBoolean("defaultBool", false);
+        defaultFloat = ic.readFloat("defaultFloat", 0f);
+        defaultInt = ic.readInt("defaultInt", 0);
+        nameHash = name.hashCode();
+    }
+
 }
@@ -0,0 +1,213 @@
+package com.capdevon.anim.fsm;
+
+import java.io.File;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.anim.AnimComposer;
+import com.jme3.app.Application;
+import com.jme3.app.state.BaseAppState;
+
+/**
+ * Prepares AnimatorControllers on a background executor, so spawning a wave
+ * of characters does not stall the render thread.
+ * <p>
+ * The worker threads load the controller graphs and create the actions,
+ * blend spaces and layers in the AnimComposer of each new controller. The
+ * AnimComposer must not be attached to the scene yet. The ready controllers
+ * are queued and handed to their callback on the render thread, at most
+ * {@link #getSpawnBudget()} per frame, where they can be attached to their
+ * spatial. A failed preparation is reported the same way, to its error
+ * callback.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class AnimatorControllerPreloader extends BaseAppState {
+
+    private static final Logger logger = Logger.getLogger(AnimatorControllerPreloader.class.getName());
+
+    //The executor running the preparation tasks.
+    private final ExecutorService executor;
+    //True if the executor has been created by this state, and must be shut down with it.
+    private final boolean ownsExecutor;
+    //The callbacks of the prepared and failed requests, waiting for the render thread.
+    private final Queue<Runnable> readyQueue = new ConcurrentLinkedQueue<>();
+    //The number of requests not yet handed to their callback.
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    //The maximum number of callbacks run per frame.
+    private int spawnBudget = 4;
+
+    /**
+     * Constructor. The preparation tasks run on a single background thread.
+     */
+    public AnimatorControllerPreloader() {
+        this(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "AnimatorControllerPreloader");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Constructor.
+     * @param executor - The executor running the preparation tasks. It is not shut down by this state.
+     */
+    public AnimatorControllerPreloader(ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private AnimatorControllerPreloader(ExecutorService executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    @Override
+    protected void initialize(Application app) {
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        readyQueue.clear();
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    protected void onEnable() {
+    }
+
+    @Override
+    protected void onDisable() {
+    }
+
+    /**
+     * Loads a controller graph from a file on the executor. The controller is
+     * frozen, ready to be used as a template.
+     *
+     * @param file    - The file to load.
+     * @param onReady - Called on the render thread with the loaded controller.
+     */
+    public void loadTemplate(File file, Consumer<AnimatorController> onReady) {
+        loadTemplate(file, onReady, null);
+    }
+
+    /**
+     * Loads a controller graph from a file on the executor. The controller is
+     * frozen, ready to be used as a template.
+     *
+     * @param file    - The file to load.
+     * @param onReady - Called on the render thread with the loaded controller.
+     * @param onError - Called on the render thread with the cause if the loading fails, or null.
+     */
+    public void loadTemplate(File file, Consumer<AnimatorController> onReady, Consumer<Exception> onError) {
+        submit(() -> {
+            AnimatorController template = AnimatorControllerIO.load(file);
+            template.freeze();
+            return template;
+        }, onReady, onError);
+    }
+
+    /**
+     * Creates a controller sharing the graph of the given template on the
+     * executor, and creates its actions in the given AnimComposer.
+     *
+     * @param template     - The controller whose graph is shared.
+     * @param animComposer - The AnimComposer of the new controller, not attached to the scene yet.
+     * @param onReady      - Called on the render thread with the new controller.
+     */
+    public void prepare(AnimatorController template, AnimComposer animComposer, Consumer<AnimatorController> onReady) {
+        prepare(template, animComposer, onReady, null);
+    }
+
+    /**
+     * Creates a controller sharing the graph of the given template on the
+     * executor, and creates its actions in the given AnimComposer.
+     *
+     * @param template     - The controller whose graph is shared.
+     * @param animComposer - The AnimComposer of the new controller, not attached to the scene yet.
+     * @param onReady      - Called on the render thread with the new controller.
+     * @param onError      - Called on the render thread with the cause if the preparation fails, or null.
+     */
+    public void prepare(AnimatorController template, AnimComposer animComposer, Consumer<AnimatorController> onReady,
+            Consumer<Exception> onError) {
+        // the template is frozen here, so the workers only read it
+        template.freeze();
+        submit(() -> new AnimatorController(template, animComposer), onReady, onError);
+    }
+
+    private void submit(Task task, Consumer<AnimatorController> onReady, Consumer<Exception> onError) {
+        pendingCount.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                AnimatorController animator = task.run();
+                readyQueue.add(() -> onReady.accept(animator));
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "AnimatorController preparation failed", e);
+                // the failure is reported on the render thread, like a success
+                readyQueue.add(() -> {
+                    if (onError != null) {
+                        onError.accept(e);
+                    }
+                });
+            }
+        });
+    }
+
+    private interface Task {
+        AnimatorController run() throws Exception;
+    }
+
+    @Override
+    public void update(float tpf) {
+        for (int i = 0; i < spawnBudget; i++) {
+            Runnable callback = readyQueue.poll();
+            if (callback == null) {
+                break;
+            }
+            pendingCount.decrementAndGet();
+            callback.run();
+        }
+    }
+
+    /**
+     * Returns the number of requests not yet handed to their callback.
+     * @return
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the number of prepared controllers and failures waiting for the
+     * render thread.
+     * @return
+     */
+    public int getReadyCount() {
+        return readyQueue.size();
+    }
+
+    public int getSpawnBudget() {
+        return spawnBudget;
+    }
+
+    /**
+     * Sets the maximum number of prepared controllers and failures handed to
+     * their callback per frame.
+     * @param spawnBudget
+     */
+    public void setSpawnBudget(int spawnBudget) {
+        if (spawnBudget < 1) {
+            throw new IllegalArgumentException("spawnBudget must be greater than zero");
+        }
+        this.spawnBudget = spawnBudget;
+    }
+
+}
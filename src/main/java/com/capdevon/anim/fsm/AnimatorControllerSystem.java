@@ -0,0 +1,232 @@
+package com.capdevon.anim.fsm;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.BaseAppState;
+
+/**
+ * Updates all the registered AnimatorControllers in a single pass, instead of
+ * one controlUpdate per spatial scattered across the scene graph.
+ * <p>
+ * In {@link UpdateMode#TwoPhase} mode the update is split in two phases:
+ * <ul>
+ * <li>decide: the transitions of every layer of every controller are evaluated
+ * in parallel on a ForkJoinPool. The layer weights and the compiled
+ * transitions are prepared beforehand on the render thread, so this phase
+ * only reads the parameters and the graph, and writes nothing but the
+ * evaluation result of each layer.</li>
+ * <li>apply: on the render thread, the selected transitions are applied to the
+ * AnimComposers and the StateMachineListener and StateMachineBehaviour
+ * callbacks are fired, in registration order and then in layer order.</li>
+ * </ul>
+ * Since parameters written by the callbacks are only read by the next decide
+ * phase, the result does not depend on the number of worker threads.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class AnimatorControllerSystem extends BaseAppState {
+
+    public enum UpdateMode {
+        //Each controller evaluates and applies its transitions in turn.
+        Sequential,
+        //All the controllers evaluate their transitions in parallel, then apply them in order.
+        TwoPhase
+    }
+
+    //The registered controllers, in registration order.
+    private AnimatorController[] controllers = new AnimatorController[16];
+    //The number of registered controllers.
+    private int size = 0;
+    //The update mode.
+    private UpdateMode updateMode = UpdateMode.Sequential;
+    //The pool used to evaluate the transitions in TwoPhase mode.
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    //The maximum number of controllers evaluated by a single task before it is split.
+    private int batchSize = 64;
+
+    /**
+     * Constructor.
+     */
+    public AnimatorControllerSystem() {
+        //default empty.
+    }
+
+    @Override
+    protected void initialize(Application app) {
+    }
+
+    @Override
+    protected void cleanup(Application app) {
+        for (int i = 0; i < size; i++) {
+            controllers[i].system = null;
+            controllers[i] = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    protected void onEnable() {
+    }
+
+    @Override
+    protected void onDisable() {
+    }
+
+    /**
+     * Registers a controller. From now on the controller is updated by this
+     * system instead of its own controlUpdate.
+     * @param animator
+     */
+    public void register(AnimatorController animator) {
+        if (animator.system != null) {
+            throw new IllegalArgumentException("The given AnimatorController is already registered at an AnimatorControllerSystem");
+        }
+        if (size == controllers.length) {
+            controllers = Arrays.copyOf(controllers, size * 2);
+        }
+        controllers[size++] = animator;
+        animator.system = this;
+    }
+
+    /**
+     * Unregisters a controller. The controller goes back to its own controlUpdate.
+     * @param animator
+     */
+    public void unregister(AnimatorController animator) {
+        if (animator.system != this) {
+            throw new IllegalArgumentException("The given AnimatorController is not registered at this AnimatorControllerSystem");
+        }
+        for (int i = 0; i < size; i++) {
+            if (controllers[i] == animator) {
+                // keep the registration order
+                System.arraycopy(controllers, i + 1, controllers, i, size - i - 1);
+                controllers[--size] = null;
+                break;
+            }
+        }
+        animator.system = null;
+        animator.setSkinningPaused(false);
+    }
+
+    /**
+     * Returns the number of registered controllers.
+     * @return
+     */
+    public int getControllerCount() {
+        return size;
+    }
+
+    public UpdateMode getUpdateMode() {
+        return updateMode;
+    }
+
+    public void setUpdateMode(UpdateMode updateMode) {
+        this.updateMode = updateMode;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets the pool used to evaluate the transitions in TwoPhase mode.
+     * The pool is not shut down by this system.
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of controllers evaluated by a single task.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be greater than zero");
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void update(float tpf) {
+        if (updateMode == UpdateMode.TwoPhase) {
+            // level of detail
+            for (int i = 0; i < size; i++) {
+                AnimatorController animator = controllers[i];
+                if (isActive(animator)) {
+                    animator.prepareUpdate(tpf);
+                }
+            }
+            // decide
+            if (size > batchSize) {
+                pool.invoke(new EvaluateTask(0, size));
+            } else {
+                evaluate(0, size);
+            }
+            // apply
+            for (int i = 0; i < size; i++) {
+                AnimatorController animator = controllers[i];
+                if (isActive(animator) && animator.updatePending) {
+                    animator.applyTransitions();
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                AnimatorController animator = controllers[i];
+                if (isActive(animator)) {
+                    animator.updateLayers(tpf);
+                }
+            }
+        }
+    }
+
+    private boolean isActive(AnimatorController animator) {
+        return animator.isEnabled() && animator.getSpatial() != null;
+    }
+
+    private void evaluate(int from, int to) {
+        for (int i = from; i < to; i++) {
+            AnimatorController animator = controllers[i];
+            if (isActive(animator) && animator.updatePending) {
+                animator.evaluateTransitions();
+            }
+        }
+    }
+
+    /**
+     * Evaluates the transitions of a contiguous range of controllers,
+     * splitting the range until it fits the batch size.
+     */
+    private class EvaluateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        EvaluateTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                evaluate(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EvaluateTask(from, mid), new EvaluateTask(mid, to));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,11 @@
+package com.capdevon.anim.fsm;
+
+/**
+ * Specifies how the animation of a layer is combined with the layers below it.
+ *
+ * @author capdevon
+ */
+public enum AnimatorLayerBlendingMode {
+    Override,   //Animations overrides to the previous layers.
+    Additive    //Animations are added to the previous layers.
+}
@@ -0,0 +1,264 @@
+package com.capdevon.anim.fsm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Camera.FrustumIntersect;
+import com.jme3.scene.Spatial;
+
+/**
+ * Animation level of detail for AnimatorControllers. The controllers are
+ * assigned to a band based on their distance from the camera (or their size on
+ * screen); each band updates the state machines every Nth frame with the
+ * accumulated tpf, and can freeze the BlendTree weight recomputation.
+ * Optionally the SkinningControl of off-screen models is paused.
+ * <p>
+ * A single AnimatorLod can be shared by many controllers, the stats are
+ * aggregated per band. It must be used from the render thread only.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class AnimatorLod {
+
+    public enum LodMetric {
+        //Bands are selected by the distance from the camera. Thresholds are maximum distances, in ascending order.
+        Distance,
+        //Bands are selected by the fraction of the screen height covered by the model. Thresholds are minimum sizes, in descending order.
+        ScreenSize
+    }
+
+    /**
+     * A distance (or screen size) band.
+     */
+    public static class LodBand {
+
+        //The maximum distance, or minimum screen size, of the band.
+        protected float threshold;
+        //The state machines are updated every frameInterval frames.
+        protected int frameInterval = 1;
+        //Skips the BlendTree weight recomputation.
+        protected boolean freezeBlendTrees = false;
+        //The number of controller updates performed in the band.
+        protected long updateCount;
+        //The number of controller updates skipped in the band.
+        protected long skipCount;
+
+        public float getThreshold() {
+            return threshold;
+        }
+
+        public int getFrameInterval() {
+            return frameInterval;
+        }
+
+        public boolean isFreezeBlendTrees() {
+            return freezeBlendTrees;
+        }
+
+        public long getUpdateCount() {
+            return updateCount;
+        }
+
+        public long getSkipCount() {
+            return skipCount;
+        }
+    }
+
+    //The camera used to compute the metric.
+    private Camera camera;
+    //The metric used to select the band.
+    private LodMetric metric = LodMetric.Distance;
+    //The bands, in order of increasing level of detail reduction.
+    private final List<LodBand> bands = new ArrayList<>();
+    //Pauses the SkinningControl of the models outside the camera frustum.
+    private boolean pauseSkinningOffscreen = false;
+    //The number of controller updates made while off-screen.
+    private long offscreenCount;
+
+    private final Vector3f tempExtent = new Vector3f();
+
+    /**
+     * Constructor.
+     * @param camera - The camera used to compute the distance of the models.
+     */
+    public AnimatorLod(Camera camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Utility function to add a band. Bands must be added in order of
+     * increasing level of detail reduction: ascending distances, or
+     * descending screen sizes.
+     *
+     * @param threshold        - The maximum distance, or minimum screen size, of the band.
+     * @param frameInterval    - The state machines are updated every frameInterval frames.
+     * @param freezeBlendTrees - Skips the BlendTree weight recomputation.
+     * @return
+     */
+    public LodBand addBand(float threshold, int frameInterval, boolean freezeBlendTrees) {
+        if (frameInterval < 1) {
+            throw new IllegalArgumentException("frameInterval must be greater than zero");
+        }
+        LodBand band = new LodBand();
+        band.threshold = threshold;
+        band.frameInterval = frameInterval;
+        band.freezeBlendTrees = freezeBlendTrees;
+        bands.add(band);
+        return band;
+    }
+
+    public LodBand getBand(int index) {
+        return bands.get(index);
+    }
+
+    public int getBandCount() {
+        return bands.size();
+    }
+
+    /**
+     * InternalCall. Returns the index of the band of the given spatial. Models
+     * beyond the last band use the last band.
+     * @param spatial
+     * @return
+     */
+    protected int selectBand(Spatial spatial) {
+        int last = bands.size() - 1;
+        if (last <= 0) {
+            return 0;
+        }
+
+        float distance = spatial.getWorldTranslation().distance(camera.getLocation());
+
+        if (metric == LodMetric.Distance) {
+            for (int i = 0; i < last; i++) {
+                if (distance <= bands.get(i).threshold) {
+                    return i;
+                }
+            }
+        } else {
+            float screenSize = getScreenSize(spatial.getWorldBound(), distance);
+            for (int i = 0; i < last; i++) {
+                if (screenSize >= bands.get(i).threshold) {
+                    return i;
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Returns the approximate fraction of the screen height covered by the bounding volume.
+     */
+    private float getScreenSize(BoundingVolume bv, float distance) {
+        float radius = 0;
+        if (bv instanceof BoundingSphere) {
+            radius = ((BoundingSphere) bv).getRadius();
+        } else if (bv instanceof BoundingBox) {
+            radius = ((BoundingBox) bv).getExtent(tempExtent).length();
+        }
+        if (distance <= camera.getFrustumNear()) {
+            return Float.MAX_VALUE;
+        }
+        // tan(fovY / 2) = frustumTop / frustumNear
+        return radius * camera.getFrustumNear() / (distance * camera.getFrustumTop());
+    }
+
+    /**
+     * InternalCall. Returns true if the spatial is outside the camera frustum.
+     * @param spatial
+     * @return
+     */
+    protected boolean isOffscreen(Spatial spatial) {
+        BoundingVolume bv = spatial.getWorldBound();
+        if (bv == null) {
+            return false;
+        }
+        int planeState = camera.getPlaneState();
+        camera.setPlaneState(0);
+        boolean offscreen = camera.contains(bv) == FrustumIntersect.Outside;
+        camera.setPlaneState(planeState);
+        return offscreen;
+    }
+
+    /**
+     * InternalCall. Records the outcome of a controller update.
+     * @param band
+     * @param updated
+     * @param offscreen
+     */
+    protected void record(int band, boolean updated, boolean offscreen) {
+        if (bands.isEmpty()) {
+            return;
+        }
+        LodBand lodBand = bands.get(band);
+        if (updated) {
+            lodBand.updateCount++;
+        } else {
+            lodBand.skipCount++;
+        }
+        if (offscreen) {
+            offscreenCount++;
+        }
+    }
+
+    /**
+     * Resets the stats of all bands.
+     */
+    public void resetStats() {
+        for (LodBand band : bands) {
+            band.updateCount = 0;
+            band.skipCount = 0;
+        }
+        offscreenCount = 0;
+    }
+
+    public long getOffscreenCount() {
+        return offscreenCount;
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    public void setCamera(Camera camera) {
+        this.camera = camera;
+    }
+
+    public LodMetric getMetric() {
+        return metric;
+    }
+
+    public void setMetric(LodMetric metric) {
+        this.metric = metric;
+    }
+
+    public boolean isPauseSkinningOffscreen() {
+        return pauseSkinningOffscreen;
+    }
+
+    public void setPauseSkinningOffscreen(boolean pauseSkinningOffscreen) {
+        this.pauseSkinningOffscreen = pauseSkinningOffscreen;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AnimatorLod [metric=").append(metric);
+        for (int i = 0; i < bands.size(); i++) {
+            LodBand band = bands.get(i);
+            sb.append(", band").append(i)
+                .append("={threshold=").append(band.threshold)
+                .append(", interval=").append(band.frameInterval)
+                .append(", updates=").append(band.updateCount)
+                .append(", skipped=").append(band.skipCount)
+                .append("}");
+        }
+        return sb.append(", offscreen=").append(offscreenCount).append("]").toString();
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.capdevon.anim.fsm;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records the work done by the state machines of the AnimatorControllers:
+ * transition checks, conditions evaluated, state changes, time spent in the
+ * StateMachineBehaviour callbacks and in the BlendTree updates.
+ * <p>
+ * The metrics are disabled unless the application is started with
+ * {@code -Dcapdevon.anim.metrics=true}. Since {@link #ENABLED} is a static
+ * final constant, the JIT removes the instrumentation entirely when it is
+ * disabled, and the controllers do not allocate any AnimatorMetrics.
+ * </p>
+ * Each controller records into its own AnimatorMetrics, whose totals are
+ * added to the {@link #getGlobal() global} metrics at the end of each update.
+ * Each controller also keeps the last samples, one per update, in a ring
+ * buffer that can be written to a CSV file. The global metrics are
+ * registered as a JMX MXBean, the metrics of a controller can be registered
+ * with {@link #register(String)}.
+ *
+ * @author capdevon
+ */
+public class AnimatorMetrics implements AnimatorMetricsMXBean {
+
+    private static final Logger logger = Logger.getLogger(AnimatorMetrics.class.getName());
+
+    //True if the metrics are recorded.
+    public static final boolean ENABLED = Boolean.getBoolean("capdevon.anim.metrics");
+    //The number of samples kept by the ring buffer of each controller.
+    public static final int CAPACITY = Math.max(1, Integer.getInteger("capdevon.anim.metrics.capacity", 256));
+    //The JMX domain of the MXBeans.
+    public static final String DOMAIN = "com.capdevon.anim";
+
+    private static final String CSV_HEADER = "time_ns,tpf_us,transition_checks,conditions_evaluated,state_changes,behaviour_ns,blend_tree_ns";
+    private static final int COLUMNS = 7;
+
+    //The metrics of all controllers.
+    private static final AnimatorMetrics GLOBAL = new AnimatorMetrics(null);
+
+    static {
+        if (ENABLED) {
+            GLOBAL.register("Global");
+        }
+    }
+
+    //The counters of the current update.
+    protected int transitionChecks;
+    protected int conditionsEvaluated;
+    protected int stateChanges;
+    protected long behaviourNanos;
+    protected long blendTreeNanos;
+
+    //The totals, also read by the JMX threads.
+    private final LongAdder totalUpdates = new LongAdder();
+    private final LongAdder totalTransitionChecks = new LongAdder();
+    private final LongAdder totalConditionsEvaluated = new LongAdder();
+    private final LongAdder totalStateChanges = new LongAdder();
+    private final LongAdder totalBehaviourNanos = new LongAdder();
+    private final LongAdder totalBlendTreeNanos = new LongAdder();
+
+    //The metrics the totals are added to, or null.
+    private final AnimatorMetrics parent;
+    //The samples, COLUMNS values per update, and the index of the next one.
+    private long[] samples;
+    private int head = 0;
+    private int sampleCount = 0;
+    //The name the metrics are registered with, or null.
+    private ObjectName objectName;
+
+    /**
+     * Creates the metrics of a controller.
+     */
+    protected AnimatorMetrics() {
+        this(GLOBAL);
+    }
+
+    private AnimatorMetrics(AnimatorMetrics parent) {
+        this.parent = parent;
+        if (parent != null) {
+            samples = new long[CAPACITY * COLUMNS];
+        }
+    }
+
+    /**
+     * Returns the metrics of all controllers.
+     * @return
+     */
+    public static AnimatorMetrics getGlobal() {
+        return GLOBAL;
+    }
+
+    /**
+     * InternalCall. Ends the update of the controller: stores a sample in the
+     * ring buffer, adds the counters to the totals and resets them.
+     * @param tpf
+     */
+    protected void endUpdate(float tpf) {
+        synchronized (this) {
+            int i = head * COLUMNS;
+            samples[i] = System.nanoTime();
+            samples[i + 1] = (long) (tpf * 1e6f);
+            samples[i + 2] = transitionChecks;
+            samples[i + 3] = conditionsEvaluated;
+            samples[i + 4] = stateChanges;
+            samples[i + 5] = behaviourNanos;
+            samples[i + 6] = blendTreeNanos;
+            head = (head + 1) % CAPACITY;
+            sampleCount = Math.min(sampleCount + 1, CAPACITY);
+        }
+
+        add(this);
+        parent.add(this);
+
+        transitionChecks = 0;
+        conditionsEvaluated = 0;
+        stateChanges = 0;
+        behaviourNanos = 0;
+        blendTreeNanos = 0;
+    }
+
+    private void add(AnimatorMetrics update) {
+        totalUpdates.increment();
+        totalTransitionChecks.add(update.transitionChecks);
+        totalConditionsEvaluated.add(update.conditionsEvaluated);
+        totalStateChanges.add(update.stateChanges);
+        totalBehaviourNanos.add(update.behaviourNanos);
+        totalBlendTreeNanos.add(update.blendTreeNanos);
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return totalUpdates.sum();
+    }
+
+    @Override
+    public long getTransitionChecks() {
+        return totalTransitionChecks.sum();
+    }
+
+    @Override
+    public long getConditionsEvaluated() {
+        return totalConditionsEvaluated.sum();
+    }
+
+    @Override
+    public long getStateChanges() {
+        return totalStateChanges.sum();
+    }
+
+    @Override
+    public long getBehaviourTimeNanos() {
+        return totalBehaviourNanos.sum();
+    }
+
+    @Override
+    public long getBlendTreeTimeNanos() {
+        return totalBlendTreeNanos.sum();
+    }
+
+    @Override
+    public void reset() {
+        totalUpdates.reset();
+        totalTransitionChecks.reset();
+        totalConditionsEvaluated.reset();
+        totalStateChanges.reset();
+        totalBehaviourNanos.reset();
+        totalBlendTreeNanos.reset();
+        synchronized (this) {
+            head = 0;
+            sampleCount = 0;
+        }
+    }
+
+    /**
+     * Returns the number of samples in the ring buffer.
+     * @return
+     */
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Writes the samples of the ring buffer in CSV format, from the oldest to
+     * the newest. The global metrics have no samples.
+     * @param out
+     * @throws IOException
+     */
+    public void writeCsv(Writer out) throws IOException {
+        long[] copy;
+        int first, count;
+        synchronized (this) {
+            count = sampleCount;
+            first = (head - count + CAPACITY) % CAPACITY;
+            copy = (samples != null) ? samples.clone() : new long[0];
+        }
+
+        out.write(CSV_HEADER);
+        out.write('\n');
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < count; n++) {
+            int i = ((first + n) % CAPACITY) * COLUMNS;
+            sb.setLength(0);
+            for (int c = 0; c < COLUMNS; c++) {
+                if (c > 0) {
+                    sb.append(',');
+                }
+                sb.append(copy[i + c]);
+            }
+            sb.append('\n');
+            out.write(sb.toString());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void dumpCsv(String path) {
+        try (Writer out = new FileWriter(new File(path))) {
+            writeCsv(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Registers these metrics as a JMX MXBean, with the given name.
+     * @param name
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(DOMAIN + ":type=AnimatorMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register AnimatorMetrics " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters these metrics from the JMX server.
+     */
+    public void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "Could not unregister AnimatorMetrics " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+}
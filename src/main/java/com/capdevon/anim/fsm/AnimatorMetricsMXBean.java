@@ -0,0 +1,57 @@
+package com.capdevon.anim.fsm;
+
+/**
+ * The management interface of {@link AnimatorMetrics}.
+ *
+ * @author capdevon
+ */
+public interface AnimatorMetricsMXBean {
+
+    /**
+     * Returns the number of controller updates recorded.
+     * @return
+     */
+    public long getUpdateCount();
+
+    /**
+     * Returns the number of transitions whose conditions have been checked.
+     * @return
+     */
+    public long getTransitionChecks();
+
+    /**
+     * Returns the number of conditions evaluated.
+     * @return
+     */
+    public long getConditionsEvaluated();
+
+    /**
+     * Returns the number of state changes.
+     * @return
+     */
+    public long getStateChanges();
+
+    /**
+     * Returns the time spent in the StateMachineBehaviour callbacks, in nanoseconds.
+     * @return
+     */
+    public long getBehaviourTimeNanos();
+
+    /**
+     * Returns the time spent updating the BlendTree weights, in nanoseconds.
+     * @return
+     */
+    public long getBlendTreeTimeNanos();
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset();
+
+    /**
+     * Writes the samples of the ring buffer to a CSV file.
+     * @param path
+     */
+    public void dumpCsv(String path);
+
+}
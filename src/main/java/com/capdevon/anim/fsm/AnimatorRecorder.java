@@ -0,0 +1,360 @@
+package com.capdevon.anim.fsm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the inputs of an AnimatorController into an append-only binary log,
+ * so that an {@link AnimatorReplayer} can reproduce its state sequence
+ * offline. The log holds a snapshot of the parameters and the states at the
+ * start, then every parameter change, trigger, layer weight and forced state
+ * in the order they happen, and the tpf of every update of the state
+ * machines.
+ * <p>
+ * The log is written through a memory-mapped file, extended chunk by chunk,
+ * so recording costs a few bytes copied per input and the data survives a
+ * crash of the application. The recorder must be used from the thread
+ * updating the controller.
+ * </p>
+ * The StateMachineBehaviours are not saved with the graph, so the values
+ * they write are recorded like any other input. The inputs written during an
+ * update are tagged with the layer being updated, and replayed right after
+ * that layer, before the layers above it read them.
+ *
+ * @author capdevon
+ */
+public class AnimatorRecorder implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(AnimatorRecorder.class.getName());
+
+    //The first bytes of a log, and the version of the format.
+    protected static final int MAGIC = 0x41465352;
+    protected static final byte VERSION = 2;
+
+    //The record types. Zero marks the end of the log, as the unwritten part of the file is filled with zeros.
+    protected static final byte END_OF_LOG = 0;
+    protected static final byte FLOAT = 1;
+    protected static final byte INT = 2;
+    protected static final byte BOOL = 3;
+    protected static final byte TRIGGER = 4;
+    protected static final byte LAYER_WEIGHT = 5;
+    protected static final byte PLAY = 6;
+    protected static final byte UPDATE = 7;
+    protected static final byte UPDATE_INPUTS = 8;
+    protected static final byte END_UPDATE = 9;
+    protected static final byte STATES = 10;
+
+    //The longest record, a PLAY record.
+    private static final int MAX_RECORD_SIZE = 1 + 5 + 5 + 8;
+
+    //The controller recorded.
+    protected final AnimatorController animator;
+    //The file and the region currently mapped, starting at mappedPosition.
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long mappedPosition;
+    //The size of the regions mapped.
+    protected final int chunkSize;
+    //Records the current state of each layer after every update, so the replay can be verified.
+    protected boolean recordStates = false;
+    //True between the start and the end of an update.
+    private boolean inUpdate = false;
+    //The layer of the last input recorded during the current update, or -1.
+    private int inputsLayer = -1;
+    //The number of updates recorded.
+    protected long updateCount;
+
+    /**
+     * Starts recording the given controller into a new file.
+     *
+     * @param animator
+     * @param file - The log file, overwritten if it exists.
+     * @throws IOException
+     */
+    public AnimatorRecorder(AnimatorController animator, Path file) throws IOException {
+        this(animator, file, 1 << 20);
+    }
+
+    /**
+     * Starts recording the given controller into a new file.
+     *
+     * @param animator
+     * @param file      - The log file, overwritten if it exists.
+     * @param chunkSize - The number of bytes the file grows by.
+     * @throws IOException
+     */
+    public AnimatorRecorder(AnimatorController animator, Path file, int chunkSize) throws IOException {
+        if (chunkSize < 64) {
+            throw new IllegalArgumentException("Chunk size is too small: " + chunkSize);
+        }
+        if (animator.recorder != null) {
+            throw new IllegalStateException("AnimatorController is already recorded");
+        }
+        this.animator = animator;
+        this.chunkSize = chunkSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(MapMode.READ_WRITE, 0, chunkSize);
+
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.putInt(fingerprint(animator));
+        writeSnapshot();
+        animator.recorder = this;
+    }
+
+    /**
+     * Returns a hash of the parameters and the states of the controller. A
+     * log can only be replayed on a controller with the same fingerprint.
+     * @param animator
+     * @return
+     */
+    public static int fingerprint(AnimatorController animator) {
+        int hash = 17;
+        for (int id = 0; id < animator.parameterCount; id++) {
+            AnimatorControllerParameter param = animator.parameterTable[id];
+            hash = 31 * hash + (param != null ? param.name.hashCode() * 4 + param.type.ordinal() : 0);
+        }
+        for (int i = 0; i < animator.layers.size(); i++) {
+            AnimatorState[] table = animator.layers.get(i).getStateTable(animator);
+            hash = 31 * hash + table.length;
+            for (int j = 1; j < table.length; j++) {
+                hash = 31 * hash + table[j].name.hashCode();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Records the current parameters, layer weights and states. The
+     * transitions in progress are not recorded, the replay starts each state
+     * without blending.
+     */
+    private void writeSnapshot() {
+        for (int id = 0; id < animator.parameterCount; id++) {
+            AnimatorControllerParameter param = animator.parameterTable[id];
+            if (param == null) {
+                continue;
+            }
+            switch (param.type) {
+                case Float:
+                    recordFloat(id, animator.floatValues[id]);
+                    break;
+                case Int:
+                    recordInt(id, animator.intValues[id]);
+                    break;
+                case Bool:
+                    recordBool(id, animator.boolValues[id]);
+                    break;
+                case Trigger:
+                    // between two updates a trigger is set in all layers or in none
+                    if (animator.layerStates.length > 0 && animator.layerStates[0].triggers.get(id)) {
+                        recordTrigger(id, true);
+                    }
+                    break;
+            }
+        }
+        for (int i = 0; i < animator.layerStates.length; i++) {
+            AnimatorStateInfo info = animator.layerStates[i];
+            if (i > 0) {
+                recordLayerWeight(i, info.weight);
+            }
+            recordPlay(i, info.currentState, info.normalizedTime);
+        }
+    }
+
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Returns the number of bytes recorded.
+     * @return
+     */
+    public long getSize() {
+        return mappedPosition + buffer.position();
+    }
+
+    public boolean isRecordStates() {
+        return recordStates;
+    }
+
+    /**
+     * Records the current state of each layer after every update, so the
+     * replayer can report where the replay diverges from the recording.
+     * @param recordStates
+     */
+    public void setRecordStates(boolean recordStates) {
+        this.recordStates = recordStates;
+    }
+
+    /**
+     * Maps the next chunk of the file if the current one has less than the
+     * given number of bytes left.
+     */
+    private MappedByteBuffer ensureRemaining(int size) {
+        if (buffer.remaining() < size) {
+            long position = mappedPosition + buffer.position();
+            try {
+                buffer = channel.map(MapMode.READ_WRITE, position, Math.max(chunkSize, size));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot extend animation log", e);
+            }
+            mappedPosition = position;
+        }
+        return buffer;
+    }
+
+    /**
+     * Starts a record. The inputs recorded during an update are preceded by a
+     * marker holding the index of the layer being updated, so the replayer
+     * applies them right after that layer.
+     */
+    private void beginRecord(byte type, int size) {
+        ensureRemaining(size + 6);
+        if (inUpdate && inputsLayer != animator.updatingLayer) {
+            inputsLayer = animator.updatingLayer;
+            buffer.put(UPDATE_INPUTS);
+            AnimatorStateCodec.putVarInt(buffer, inputsLayer);
+        }
+        buffer.put(type);
+    }
+
+    /**
+     * InternalCall.
+     * @param id
+     * @param value
+     */
+    protected void recordFloat(int id, float value) {
+        beginRecord(FLOAT, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, id);
+        buffer.putFloat(value);
+    }
+
+    /**
+     * InternalCall.
+     * @param id
+     * @param value
+     */
+    protected void recordInt(int id, int value) {
+        beginRecord(INT, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, id);
+        AnimatorStateCodec.putSignedVarInt(buffer, value);
+    }
+
+    /**
+     * InternalCall.
+     * @param id
+     * @param value
+     */
+    protected void recordBool(int id, boolean value) {
+        beginRecord(BOOL, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, id);
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    /**
+     * InternalCall.
+     * @param id
+     * @param value - True if the trigger is set, false if it is reset.
+     */
+    protected void recordTrigger(int id, boolean value) {
+        beginRecord(TRIGGER, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, id);
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    /**
+     * InternalCall.
+     * @param layerIndex
+     * @param weight
+     */
+    protected void recordLayerWeight(int layerIndex, float weight) {
+        beginRecord(LAYER_WEIGHT, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, layerIndex);
+        buffer.putFloat(weight);
+    }
+
+    /**
+     * InternalCall.
+     * @param layerIndex
+     * @param state
+     * @param normalizedTime
+     */
+    protected void recordPlay(int layerIndex, AnimatorState state, double normalizedTime) {
+        beginRecord(PLAY, MAX_RECORD_SIZE);
+        AnimatorStateCodec.putVarInt(buffer, layerIndex);
+        AnimatorStateCodec.putVarInt(buffer, state.stateIndex);
+        buffer.putDouble(normalizedTime);
+    }
+
+    /**
+     * InternalCall. Records the start of an update of the state machines.
+     * @param tpf - The time per frame used by the state machines.
+     */
+    protected void beginUpdate(float tpf) {
+        ensureRemaining(5).put(UPDATE);
+        buffer.putFloat(tpf);
+        inUpdate = true;
+        inputsLayer = -1;
+        updateCount++;
+    }
+
+    /**
+     * InternalCall. Records the end of an update of the state machines. The
+     * end is marked only if inputs were recorded during the update.
+     */
+    protected void endUpdate() {
+        if (inputsLayer >= 0) {
+            ensureRemaining(1).put(END_UPDATE);
+        }
+        inUpdate = false;
+        inputsLayer = -1;
+
+        if (recordStates) {
+            int layerCount = animator.layerStates.length;
+            ensureRemaining(1 + 5 * (layerCount + 1)).put(STATES);
+            AnimatorStateCodec.putVarInt(buffer, layerCount);
+            for (int i = 0; i < layerCount; i++) {
+                AnimatorStateCodec.putVarInt(buffer, animator.layerStates[i].currentState.stateIndex);
+            }
+        }
+    }
+
+    /**
+     * Writes the recorded data to the storage device.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Stops recording and trims the file to the recorded size.
+     */
+    @Override
+    public void close() throws IOException {
+        if (animator.recorder == this) {
+            animator.recorder = null;
+        }
+        if (!channel.isOpen()) {
+            return;
+        }
+        long size = getSize();
+        buffer.force();
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            // some platforms cannot truncate a mapped file, the zeros left mark the end of the log
+            logger.log(Level.WARNING, "Cannot trim animation log: {0}", e.getMessage());
+        }
+        channel.close();
+    }
+
+}
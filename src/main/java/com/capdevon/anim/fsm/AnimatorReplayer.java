@@ -0,0 +1,277 @@
+package com.capdevon.anim.fsm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a log written by an {@link AnimatorRecorder} on a controller built
+ * from the same graph, for example loaded with {@link AnimatorControllerIO}
+ * and bound to a {@link com.capdevon.anim.HeadlessAnimComposer}. The inputs
+ * are applied in the recorded order and the state machines are updated with
+ * the recorded tpf, so the controller goes through the same states as the
+ * recorded one. The inputs written during an update are applied between the
+ * layers, after the layer that was being updated when they were written. If the log holds the recorded states, every update is
+ * checked against them.
+ * <p>
+ * A replay can be {@link #rewind() rewound}: the snapshot at the start of the
+ * log puts the controller back in the recorded initial state, so the same
+ * log can be replayed in a loop as a benchmark workload.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class AnimatorReplayer {
+
+    private static final Logger logger = Logger.getLogger(AnimatorReplayer.class.getName());
+
+    //The size of the header of a log: magic, version and fingerprint.
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+
+    //The controller the log is replayed on.
+    protected final AnimatorController animator;
+    //The log, positioned on the next record.
+    protected final ByteBuffer log;
+    //The number of updates replayed since the last rewind.
+    protected long updateCount;
+    //The number of updates whose states differ from the recorded ones, and the first of them.
+    protected long divergenceCount;
+    protected long firstDivergence = -1;
+    //The layer after which the next input of the current update is applied, or -1 if there is none.
+    private int inputsLayer = -1;
+
+    /**
+     * Creates a replayer for the given log.
+     * Throws an exception if the log was not recorded from the same graph.
+     *
+     * @param animator
+     * @param log - The content of a log file.
+     */
+    public AnimatorReplayer(AnimatorController animator, ByteBuffer log) {
+        this.animator = animator;
+        this.log = log.duplicate();
+
+        if (this.log.remaining() < HEADER_SIZE || this.log.getInt() != AnimatorRecorder.MAGIC) {
+            throw new IllegalArgumentException("Not an animation log");
+        }
+        byte version = this.log.get();
+        if (version != AnimatorRecorder.VERSION) {
+            throw new IllegalArgumentException("Unsupported animation log version: " + version);
+        }
+        if (this.log.getInt() != AnimatorRecorder.fingerprint(animator)) {
+            throw new IllegalArgumentException("Animation log was recorded from another AnimatorController graph");
+        }
+    }
+
+    /**
+     * Creates a replayer for the given log file, mapped in memory.
+     *
+     * @param animator
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static AnimatorReplayer open(AnimatorController animator, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new AnimatorReplayer(animator, channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public AnimatorController getAnimator() {
+        return animator;
+    }
+
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Returns the number of updates that ended in other states than the
+     * recorded ones. Always 0 if the states were not recorded.
+     * @return
+     */
+    public long getDivergenceCount() {
+        return divergenceCount;
+    }
+
+    /**
+     * Returns the index of the first update that ended in other states than
+     * the recorded ones, or -1.
+     * @return
+     */
+    public long getFirstDivergence() {
+        return firstDivergence;
+    }
+
+    /**
+     * Returns true if the log has records left.
+     * @return
+     */
+    public boolean hasNext() {
+        return log.hasRemaining() && log.get(log.position()) != AnimatorRecorder.END_OF_LOG;
+    }
+
+    /**
+     * Restarts the replay from the beginning of the log. The controller is put
+     * back in the recorded initial state by the next step.
+     */
+    public void rewind() {
+        log.position(HEADER_SIZE);
+        inputsLayer = -1;
+        updateCount = 0;
+        divergenceCount = 0;
+        firstDivergence = -1;
+    }
+
+    /**
+     * Applies the records up to the next update of the state machines, and
+     * performs it.
+     * @return false if the end of the log has been reached.
+     */
+    public boolean step() {
+        while (hasNext()) {
+            byte type = log.get();
+            switch (type) {
+                case AnimatorRecorder.UPDATE:
+                    float tpf = log.getFloat();
+                    if (hasNext() && log.get(log.position()) == AnimatorRecorder.UPDATE_INPUTS) {
+                        // the inputs written during the update follow, up to END_UPDATE
+                        log.get();
+                        inputsLayer = AnimatorStateCodec.getVarInt(log);
+                    }
+                    animator.replayer = this;
+                    try {
+                        animator.updateLayers(tpf);
+                    } finally {
+                        animator.replayer = null;
+                    }
+                    // the inputs written after the layers were updated
+                    applyInputs(Integer.MAX_VALUE);
+                    updateCount++;
+                    checkStates();
+                    return true;
+                case AnimatorRecorder.STATES:
+                    // checked with the update it follows
+                    skipStates();
+                    break;
+                default:
+                    applyInput(type);
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Applies the inputs recorded while the given layer was
+     * being updated, before the layers above it are updated.
+     * @param layerIndex
+     */
+    protected void layerUpdated(int layerIndex) {
+        applyInputs(layerIndex);
+    }
+
+    /**
+     * Applies the inputs of the current update recorded up to the given
+     * layer.
+     */
+    private void applyInputs(int layerIndex) {
+        while (inputsLayer >= 0 && inputsLayer <= layerIndex) {
+            byte type = log.get();
+            if (type == AnimatorRecorder.UPDATE_INPUTS) {
+                inputsLayer = AnimatorStateCodec.getVarInt(log);
+            } else if (type == AnimatorRecorder.END_UPDATE) {
+                inputsLayer = -1;
+            } else {
+                applyInput(type);
+            }
+        }
+    }
+
+    /**
+     * Applies a parameter, layer weight or state record.
+     */
+    private void applyInput(byte type) {
+        switch (type) {
+            case AnimatorRecorder.FLOAT:
+                animator.setFloat(AnimatorStateCodec.getVarInt(log), log.getFloat());
+                break;
+            case AnimatorRecorder.INT:
+                animator.setInt(AnimatorStateCodec.getVarInt(log), AnimatorStateCodec.getSignedVarInt(log));
+                break;
+            case AnimatorRecorder.BOOL:
+                animator.setBool(AnimatorStateCodec.getVarInt(log), log.get() != 0);
+                break;
+            case AnimatorRecorder.TRIGGER: {
+                int id = AnimatorStateCodec.getVarInt(log);
+                if (log.get() != 0) {
+                    animator.setTrigger(id);
+                } else {
+                    animator.resetTrigger(id);
+                }
+                break;
+            }
+            case AnimatorRecorder.LAYER_WEIGHT:
+                animator.setLayerWeight(AnimatorStateCodec.getVarInt(log), log.getFloat());
+                break;
+            case AnimatorRecorder.PLAY: {
+                int layerIndex = AnimatorStateCodec.getVarInt(log);
+                AnimatorState[] table = animator.layers.get(layerIndex).getStateTable(animator);
+                AnimatorState state = table[AnimatorStateCodec.getVarInt(log)];
+                animator.play(layerIndex, state, log.getDouble());
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Corrupted animation log at " + (log.position() - 1));
+        }
+    }
+
+    /**
+     * Replays the remaining records.
+     * @return the number of updates replayed.
+     */
+    public long replay() {
+        long start = updateCount;
+        while (step()) {
+        }
+        return updateCount - start;
+    }
+
+    /**
+     * Compares the current states with the recorded ones, if the next record
+     * holds them.
+     */
+    private void checkStates() {
+        if (!hasNext() || log.get(log.position()) != AnimatorRecorder.STATES) {
+            return;
+        }
+        log.get();
+        int layerCount = AnimatorStateCodec.getVarInt(log);
+        boolean diverged = false;
+        for (int i = 0; i < layerCount; i++) {
+            int stateIndex = AnimatorStateCodec.getVarInt(log);
+            if (animator.layerStates[i].currentState.stateIndex != stateIndex) {
+                diverged = true;
+            }
+        }
+        if (diverged) {
+            if (divergenceCount++ == 0) {
+                firstDivergence = updateCount - 1;
+                logger.log(Level.WARNING, "Replay diverged from the recording at update {0}", firstDivergence);
+            }
+        }
+    }
+
+    private void skipStates() {
+        int layerCount = AnimatorStateCodec.getVarInt(log);
+        for (int i = 0; i < layerCount; i++) {
+            AnimatorStateCodec.getVarInt(log);
+        }
+    }
+
+}
@@ -1,15 +1,21 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.logging.Logger;
 
+import com.capdevon.anim.WeightedBlendAction;
 import com.capdevon.anim.fsm.BlendTree.BlendTreeType;
 import com.jme3.anim.tween.action.Action;
-import com.jme3.anim.tween.action.BlendAction;
 import com.jme3.anim.tween.action.BlendableAction;
-import com.jme3.math.FastMath;
-import com.jme3.math.Vector2f;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 
 /**
  * States are the basic building blocks of a state machine. Each state contains
@@ -20,7 +26,7 @@ import com.jme3.math.Vector2f;
  *
  * @author capdevon
  */
-public class AnimatorState {
+public class AnimatorState implements Savable {
 
     private static final Logger logger = Logger.getLogger(AnimatorState.class.getName());
 
@@ -34,8 +40,30 @@ public class AnimatorState {
     protected float speed = 1f;
     //The transitions that are going out of the state.
     protected List<AnimatorStateTransition> transitions = new ArrayList<>();
-    //The behaviour list assigned to this state.
-    protected List<StateMachineBehaviour> behaviours = new ArrayList<>();
+    //The behaviours assigned to this state.
+    protected StateMachineBehaviour[] behaviours = new StateMachineBehaviour[0];
+    //The behaviours that receive onStateUpdate.
+    protected StateMachineBehaviour[] updateBehaviours = new StateMachineBehaviour[0];
+    //The state machine containing the state.
+    protected AnimatorStateMachine stateMachine;
+    //The outgoing transitions with the sub-state machines and the Exit node resolved to states, sorted by priority.
+    protected AnimatorStateTransition[] compiledTransitions = new AnimatorStateTransition[0];
+    //The ids of the parameters read by the conditions of the outgoing transitions.
+    protected int[] dependencies = new int[0];
+    //The exit times lower than 1 of the outgoing transitions, reached once per loop.
+    protected float[] loopExitTimes = new float[0];
+    //The exit times not lower than 1 of the outgoing transitions, reached once.
+    protected float[] exitTimes = new float[0];
+    //The graph version the transitions and dependencies were compiled for.
+    private int dependenciesVersion = -1;
+    //The index of the state in the state table of its layer, or -1 if the table has not been built.
+    protected int stateIndex = -1;
+
+    /**
+     * constructor for serialization only
+     */
+    protected AnimatorState() {
+    }
 
     /**
      * Constructor.
@@ -48,12 +76,27 @@ public class AnimatorState {
         this.animator = animator;
     }
 
+    /**
+     * InternalCall. Attaches the state to the given controller after it has
+     * been read.
+     * @param animator
+     */
+    protected void attach(AnimatorController animator) {
+        this.animator = animator;
+        this.dependenciesVersion = -1;
+        for (int i = 0; i < transitions.size(); i++) {
+            transitions.get(i).attach(animator);
+        }
+    }
+
     /**
      * Adds a state machine behaviour class to the AnimatorState.
      * @param behaviour The state machine behaviour to add.
      */
     public void addStateMachineBehaviour(StateMachineBehaviour behaviour) {
-        behaviours.add(behaviour);
+        behaviours = Arrays.copyOf(behaviours, behaviours.length + 1);
+        behaviours[behaviours.length - 1] = behaviour;
+        updateBehaviours();
     }
     
     /**
@@ -61,7 +104,27 @@ public class AnimatorState {
      * @param behaviour The state machine behaviour to remove.
      */
     public void removeStateMachineBehaviour(StateMachineBehaviour behaviour) {
-    	behaviours.remove(behaviour);
+        for (int i = 0; i < behaviours.length; i++) {
+            if (behaviours[i] == behaviour) {
+                StateMachineBehaviour[] array = new StateMachineBehaviour[behaviours.length - 1];
+                System.arraycopy(behaviours, 0, array, 0, i);
+                System.arraycopy(behaviours, i + 1, array, i, array.length - i);
+                behaviours = array;
+                updateBehaviours();
+                return;
+            }
+        }
+    }
+
+    private void updateBehaviours() {
+        int count = 0;
+        StateMachineBehaviour[] array = new StateMachineBehaviour[behaviours.length];
+        for (StateMachineBehaviour behaviour : behaviours) {
+            if (behaviour.wantsUpdate()) {
+                array[count++] = behaviour;
+            }
+        }
+        updateBehaviours = Arrays.copyOf(array, count);
     }
 
     /**
@@ -70,6 +133,7 @@ public class AnimatorState {
      */
     public void removeTransition(AnimatorStateTransition transition) {
         transitions.remove(transition);
+        animator.graphChanged();
     }
 
     /**
@@ -86,79 +150,362 @@ public class AnimatorState {
         transition.destinationState = destinationState;
         if (exitTime > 0) {
             transition.hasExitTime = true;
-            transition.exitTime = FastMath.clamp(exitTime, 0, 1);
+            transition.exitTime = exitTime;
         }
 
         transitions.add(transition);
+        animator.graphChanged();
         return transition;
     }
 
     /**
-     * InternalCall.
-     * @param layerName
+     * Utility function to add an outgoing transition to the destination sub-state machine.
+     * The sub-state machine is entered through its default state.
+     * @param destinationStateMachine The destination state machine.
+     * @return 
+     */
+    public AnimatorStateTransition addTransition(AnimatorStateMachine destinationStateMachine) {
+        AnimatorStateTransition transition = addTransition((AnimatorState) null, 0);
+        transition.destinationStateMachine = destinationStateMachine;
+        return transition;
+    }
+
+    /**
+     * Utility function to add an outgoing transition to the Exit node of the
+     * state machine containing the state.
+     * @return 
+     */
+    public AnimatorStateTransition addExitTransition() {
+        AnimatorStateTransition transition = addTransition((AnimatorState) null, 0);
+        transition.isExit = true;
+        return transition;
+    }
+
+    /**
+     * InternalCall. Returns true if any parameter read by the outgoing transitions
+     * changed after the given parameter version.
+     * @param animator - The controller running the state.
+     * @param version
      * @return
      */
-    protected AnimatorState checkTransitions(String layerName) {
-        for (AnimatorStateTransition transition: transitions) {
-            if (!transition.mute && transition.checkConditions(this, layerName)) {
-
-                // do transition
-                AnimatorState nextState = transition.destinationState;
-                String animName = nextState.motion.name;
-
-                // Some states may not have an associated animation.
-                if (animName != null) {
-                    BlendableAction action = (BlendableAction) animator.animComposer.getAction(animName);
-                    action.setSpeed(nextState.speed);
-                    action.setTransitionLength(transition.duration);
-                    animator.animComposer.setCurrentAction(animName, layerName);
-                    animator.animComposer.setTime(layerName, transition.offset);
+    protected boolean hasChangedDependencies(AnimatorController animator, int version) {
+        if (dependenciesVersion != this.animator.graphVersion) {
+            compileTransitions();
+        }
+        int[] versions = animator.parameterVersions;
+        for (int i = 0; i < dependencies.length; i++) {
+            if (versions[dependencies[i]] > version) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Resolves the transitions to sub-state machines and to the Exit node into
+     * direct transitions between states, and collects the parameters they read.
+     * A transition to the Exit node is chained with each outgoing transition of
+     * the state machine; if there is none, it goes to the default state of the
+     * parent state machine.
+     */
+    protected void compileTransitions() {
+        List<AnimatorStateTransition> compiled = new ArrayList<>();
+
+        for (AnimatorStateTransition transition : transitions) {
+            if (transition.mute) {
+                continue;
+            }
+            if (transition.isExit) {
+                AnimatorStateMachine sm = stateMachine;
+                if (sm.transitions.isEmpty()) {
+                    AnimatorStateMachine target = (sm.parent != null) ? sm.parent : sm;
+                    addCompiled(compiled, transition.flatten(null, target.getDefaultState()));
                 } else {
-                    // In this case, remove the previous state animation from the layer.
-                    animator.animComposer.removeCurrentAction(layerName);
+                    for (AnimatorStateTransition exit : sm.transitions) {
+                        if (!exit.mute) {
+                            addCompiled(compiled, transition.flatten(exit, exit.resolveDestination()));
+                        }
+                    }
                 }
+            } else if (transition.destinationStateMachine != null) {
+                addCompiled(compiled, transition.flatten(null, transition.resolveDestination()));
+            } else {
+                compiled.add(transition);
+            }
+        }
 
-                return nextState;
+        BitSet ids = new BitSet();
+        float[] loopTimes = new float[compiled.size()];
+        float[] times = new float[compiled.size()];
+        int loopCount = 0;
+        int count = 0;
+
+        for (AnimatorStateTransition transition : compiled) {
+            for (AnimatorCondition condition : transition.conditions) {
+                ids.set(condition.parameterId);
+            }
+            if (transition.hasExitTime && transition.exitTime < 1) {
+                loopTimes[loopCount++] = transition.exitTime;
+            } else if (transition.hasExitTime) {
+                times[count++] = transition.exitTime;
             }
         }
-        return this;
+
+        // stable sort, transitions with the same priority keep their order
+        compiled.sort((a, b) -> Integer.compare(b.priority, a.priority));
+        compiledTransitions = compiled.toArray(new AnimatorStateTransition[0]);
+        dependencies = ids.stream().toArray();
+        loopExitTimes = Arrays.copyOf(loopTimes, loopCount);
+        exitTimes = Arrays.copyOf(times, count);
+        dependenciesVersion = animator.graphVersion;
     }
 
     /**
-     * InternalCall
+     * InternalCall. Returns true if the exit time of one of the outgoing
+     * transitions is passed between the two given normalized times. An exit
+     * time lower than 1 is compared with the fractional part of the times, so
+     * it is passed once per loop.
+     * @param from - The normalized time of the last evaluation.
+     * @param to   - The current normalized time.
+     * @return
+     */
+    protected boolean isExitTimeCrossed(double from, double to) {
+        if (to < from) {
+            // played backwards
+            double time = from;
+            from = to;
+            to = time;
+        }
+        for (int i = 0; i < exitTimes.length; i++) {
+            // the exit time is passed once the time is greater than it
+            if (from <= exitTimes[i] && exitTimes[i] < to) {
+                return true;
+            }
+        }
+        if (loopExitTimes.length > 0) {
+            double loops = Math.floor(to) - Math.floor(from);
+            double fromFraction = from - Math.floor(from);
+            double toFraction = to - Math.floor(to);
+            for (int i = 0; i < loopExitTimes.length; i++) {
+                float exitTime = loopExitTimes[i];
+                if (loops == 0) {
+                    if (fromFraction <= exitTime && exitTime < toFraction) {
+                        return true;
+                    }
+                } else if (loops > 1 || fromFraction <= exitTime || exitTime < toFraction) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Returns true if the motion or an outgoing transition of
+     * the state reads the given parameter.
+     * @param parameter - The name of the parameter.
+     * @return
+     */
+    protected boolean usesParameter(String parameter) {
+        if (motion instanceof BlendTree && ((BlendTree) motion).usesParameter(parameter)) {
+            return true;
+        }
+        for (AnimatorStateTransition transition : transitions) {
+            if (transition.usesParameter(parameter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addCompiled(List<AnimatorStateTransition> compiled, AnimatorStateTransition transition) {
+        // a sub-state machine without a default state cannot be entered
+        if (transition.destinationState != null) {
+            compiled.add(transition);
+        }
+    }
+
+    /**
+     * InternalCall. Returns the first transition whose conditions are met, or null.
+     * Reads the parameters but does not touch the AnimComposer.
+     * @param animator - The controller running the state.
      * @param layerName
+     * @return
+     */
+    protected AnimatorStateTransition findTransition(AnimatorController animator, AnimatorStateInfo info) {
+        if (dependenciesVersion != this.animator.graphVersion) {
+            compileTransitions();
+        }
+        for (int i = 0; i < compiledTransitions.length; i++) {
+            AnimatorStateTransition transition = compiledTransitions[i];
+            if (transition.checkConditions(animator, this, info)) {
+                return transition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * InternalCall. Returns the first transition of this state that can
+     * interrupt the given transition, which is leaving this state. With
+     * ordered interruption only the transitions with a higher priority are
+     * checked. The transitions with an exit time are not checked, since the
+     * normalized time belongs to the destination state.
+     * @param animator - The controller running the state.
+     * @param info     - The runtime state of the layer.
+     * @param active   - The transition in progress.
+     * @return
+     */
+    protected AnimatorStateTransition findInterruption(AnimatorController animator, AnimatorStateInfo info, AnimatorStateTransition active) {
+        if (dependenciesVersion != this.animator.graphVersion) {
+            compileTransitions();
+        }
+        for (int i = 0; i < compiledTransitions.length; i++) {
+            AnimatorStateTransition transition = compiledTransitions[i];
+            if (transition == active) {
+                if (active.orderedInterruption) {
+                    // the remaining transitions have a lower priority
+                    break;
+                }
+                continue;
+            }
+            if (!transition.hasExitTime && transition.checkConditions(animator, this, info)) {
+                return transition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * InternalCall. Applies the given transition to the AnimComposer.
+     * @param animator - The controller running the state.
+     * @param transition
+     * @param info - The runtime state of the layer.
+     * @return the destination state
+     */
+    protected AnimatorState doTransition(AnimatorController animator, AnimatorStateTransition transition, AnimatorStateInfo info) {
+        AnimatorState nextState = transition.destinationState;
+        String animName = nextState.motion.name;
+
+        // Some states may not have an associated animation.
+        if (animName != null) {
+            BlendableAction action = (BlendableAction) animator.animComposer.getAction(animName);
+            action.setSpeed(nextState.speed);
+            action.setTransitionLength(transition.duration);
+            animator.setCurrentAction(info, animName);
+            animator.animComposer.setTime(info.layerName, transition.offset);
+            double length = action.getLength();
+            info.normalizedTime = (length > 0) ? animator.animComposer.getTime(info.layerName) / length : 0;
+        } else {
+            // In this case, remove the previous state animation from the layer.
+            animator.removeCurrentAction(info);
+            info.normalizedTime = 0;
+        }
+
+        return nextState;
+    }
+
+    /**
+     * InternalCall. Plays the motion of the state on the layer at the given
+     * normalized time, without blending with the previous state.
+     * @param animator - The controller running the state.
+     * @param info - The runtime state of the layer.
+     * @param normalizedTime
+     */
+    protected void play(AnimatorController animator, AnimatorStateInfo info, double normalizedTime) {
+        String animName = (motion != null) ? motion.name : null;
+
+        if (animName != null) {
+            BlendableAction action = (BlendableAction) animator.animComposer.getAction(animName);
+            action.setSpeed(speed);
+            action.setTransitionLength(0);
+            animator.setCurrentAction(info, animName);
+            double length = action.getLength();
+            if (length > 0) {
+                animator.animComposer.setTime(info.layerName, normalizedTime * length);
+            }
+        } else {
+            animator.removeCurrentAction(info);
+        }
+        info.normalizedTime = normalizedTime;
+    }
+
+    /**
+     * InternalCall
+     * @param animator - The controller running the state.
+     * @param info - The runtime state of the layer.
      * @param tpf
      */
-    protected void update(String layerName, float tpf) {
+    protected void update(AnimatorController animator, AnimatorStateInfo info, float tpf) {
 
         if (motion instanceof BlendTree) {
 
             BlendTree blendTree = (BlendTree) motion;
 
-            if (blendTree.blendType == BlendTreeType.Simple1D) {
+            if (animator.freezeBlendTrees && animator.getCurrentAction(info) != null) {
+                // level of detail: keep the current weights
+                return;
+            }
+
+            if (!blendTree.bound) {
+                blendTree.bind(animator);
+            }
+
+            if (blendTree.leafClips != null) {
+
+                // nested blend trees, flattened into a single action
+                float speed = blendTree.computeLeafWeights(info, animator.floatValues);
+
+                WeightedBlendAction action = (WeightedBlendAction) animator.animComposer.getAction(blendTree.name);
+                action.setWeights(info.getBlendTreeInfo(blendTree).leafWeights);
+                action.setSpeed(speed);
+
+            } else if (blendTree.blendType == BlendTreeType.Simple1D) {
+
+                // the two childs bracketing the blend value, weighted by their thresholds
+                float blendPos = animator.floatValues[blendTree.blendParameterId];
+                BlendTreeInfo treeInfo = info.getBlendTreeInfo(blendTree);
+                blendTree.getBlendMotion(treeInfo, blendPos);
 
-                // Update blend value
-                float blendPos = animator.getFloat(blendTree.blendParameter);
-                ChildMotion childMotion = blendTree.getBlendMotion(blendPos);
-                
-                BlendAction action = (BlendAction) animator.animComposer.getAction(blendTree.name);
-                action.getBlendSpace().setValue(blendPos);
-                action.setSpeed(childMotion.timeScale);
+                WeightedBlendAction action = (WeightedBlendAction) animator.animComposer.getAction(blendTree.name);
+                action.setWeights(treeInfo.weights);
+                action.setSpeed(blendTree.getBlendSpeed(treeInfo));
 
             } else if (blendTree.blendType == BlendTreeType.SimpleDirectional2D) {
 
-                float x = animator.getFloat(blendTree.blendParameter);
-                float y = animator.getFloat(blendTree.blendParameterY);
-                Vector2f blendPos = new Vector2f(x, y);
+                float x = animator.floatValues[blendTree.blendParameterId];
+                float y = animator.floatValues[blendTree.blendParameterYId];
 
-                ChildMotion childMotion = blendTree.getBlendMotion(blendPos);
+                ChildMotion childMotion = blendTree.getBlendMotion(x, y);
                 Action action = animator.animComposer.getAction(childMotion.animName);
 
-                if (animator.animComposer.getCurrentAction(layerName) != action) {
-                    animator.animComposer.setCurrentAction(childMotion.animName, layerName);
-                    animator.animComposer.setTime(layerName, childMotion.cycleOffset * action.getLength());
+                if (animator.getCurrentAction(info) != action) {
+                    animator.setCurrentAction(info, childMotion.animName);
+                    animator.animComposer.setTime(info.layerName, childMotion.cycleOffset * action.getLength());
                     action.setSpeed(childMotion.timeScale);
                 }
+
+            } else if (blendTree.blendType == BlendTreeType.FreeformDirectional2D
+                    || blendTree.blendType == BlendTreeType.FreeformCartesian2D) {
+
+                float x = animator.floatValues[blendTree.blendParameterId];
+                float y = animator.floatValues[blendTree.blendParameterYId];
+
+                BlendTreeInfo treeInfo = info.getBlendTreeInfo(blendTree);
+                blendTree.computeFreeformWeights(treeInfo, x, y);
+
+                WeightedBlendAction action = (WeightedBlendAction) animator.animComposer.getAction(blendTree.name);
+                action.setWeights(treeInfo.weights);
+                action.setSpeed(blendTree.getBlendSpeed(treeInfo));
+
+            } else if (blendTree.blendType == BlendTreeType.Direct) {
+
+                BlendTreeInfo treeInfo = info.getBlendTreeInfo(blendTree);
+                float speed = blendTree.computeDirectWeights(treeInfo, animator.floatValues);
+
+                WeightedBlendAction action = (WeightedBlendAction) animator.animComposer.getAction(blendTree.name);
+                action.setWeights(treeInfo.weights);
+                action.setSpeed(speed);
             }
         }
     }
@@ -179,6 +526,31 @@ public class AnimatorState {
         this.speed = speed;
     }
     
+    /**
+     * Writes the motion, the speed and the transitions of the state.
+     * The behaviours are code, and are not saved.
+     */
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(name, "name", null);
+        oc.write(speed, "speed", 1f);
+        oc.write(motion, "motion", null);
+        oc.write(stateMachine, "stateMachine", null);
+        oc.writeSavableArrayList(new ArrayList<>(transitions), "transitions", null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        name = ic.readString("name", null);
+        speed = ic.readFloat("speed", 1f);
+        motion = (Motion) ic.readSavable("motion", null);
+        stateMachine = (AnimatorStateMachine) ic.readSavable("stateMachine", null);
+        transitions = ic.readSavableArrayList("transitions", new ArrayList<>());
+    }
+
     @Override
     public String toString() {
         return "AnimatorState [object=" + animator.getSpatial()
@@ -186,7 +558,7 @@ public class AnimatorState {
             + ", state=" + name
             + ", speed=" + speed
             + ", transitions=" + transitions.size()
-            + ", behaviours=" + behaviours.size()
+            + ", behaviours=" + behaviours.length
             + "]";
     }
 
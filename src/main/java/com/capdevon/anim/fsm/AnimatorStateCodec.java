@@ -0,0 +1,196 @@
+package com.capdevon.anim.fsm;
+
+import java.nio.ByteBuffer;
+
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * The wire format shared by {@link AnimatorStateEncoder} and
+ * {@link AnimatorStateDecoder}. A payload describes the changes of one
+ * AnimatorController since the previous payload:
+ * <pre>
+ * header       byte, KEYFRAME flag
+ * param mask   one bit per parameter id, omitted in a keyframe
+ * params       the changed values in id order: Float and Int as zigzag
+ *              varints (Float quantized by the float step), Bool as a byte
+ * layer mask   one bit per layer, omitted in a keyframe
+ * layers       per included layer: a flags byte (STATE, TIME), the varint
+ *              index of the state in the state table of the layer, the
+ *              normalized time as a zigzag varint quantized by the time step
+ * </pre>
+ * A keyframe holds all parameters and the state and time of all layers.
+ * Triggers are not replicated: their effect is carried by the states.
+ * Both sides must use the same graph and the same quantization steps.
+ *
+ * @author capdevon
+ */
+public abstract class AnimatorStateCodec {
+
+    //Header flag of a payload holding the full state of the controller.
+    protected static final int KEYFRAME = 1;
+    //Layer flags: the state index and the normalized time follow.
+    protected static final int LAYER_STATE = 1;
+    protected static final int LAYER_TIME = 2;
+
+    //The controller written or read by the codec.
+    protected final AnimatorController animator;
+    //The quantization step of the Float parameters.
+    protected float floatStep = 0.01f;
+    //The number of steps per loop of the normalized time.
+    protected int timeSteps = 1024;
+
+    /**
+     * Constructor.
+     * @param animator
+     */
+    protected AnimatorStateCodec(AnimatorController animator) {
+        this.animator = animator;
+    }
+
+    public AnimatorController getAnimator() {
+        return animator;
+    }
+
+    public float getFloatStep() {
+        return floatStep;
+    }
+
+    /**
+     * Sets the quantization step of the Float parameters. The encoder and the
+     * decoder must use the same step.
+     * @param floatStep
+     */
+    public void setFloatStep(float floatStep) {
+        if (!(floatStep > 0)) {
+            throw new IllegalArgumentException("Float step must be positive: " + floatStep);
+        }
+        this.floatStep = floatStep;
+    }
+
+    public int getTimeSteps() {
+        return timeSteps;
+    }
+
+    /**
+     * Sets the number of quantization steps per loop of the normalized time.
+     * The encoder and the decoder must use the same value.
+     * @param timeSteps
+     */
+    public void setTimeSteps(int timeSteps) {
+        if (timeSteps <= 0) {
+            throw new IllegalArgumentException("Time steps must be positive: " + timeSteps);
+        }
+        this.timeSteps = timeSteps;
+    }
+
+    /**
+     * Returns true if the parameter with the given id is replicated.
+     * @param id
+     * @return
+     */
+    protected boolean isReplicated(int id) {
+        AnimatorControllerParameter param = animator.parameterTable[id];
+        return param != null && param.type != AnimatorControllerParameterType.Trigger;
+    }
+
+    /**
+     * Returns the value of a parameter as written on the wire.
+     * @param id
+     * @return
+     */
+    protected int quantizeParameter(int id) {
+        switch (animator.parameterTable[id].type) {
+            case Float:
+                return Math.round(animator.floatValues[id] / floatStep);
+            case Int:
+                return animator.intValues[id];
+            case Bool:
+                return animator.boolValues[id] ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns a normalized time as written on the wire.
+     * @param normalizedTime
+     * @return
+     */
+    protected int quantizeTime(double normalizedTime) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(normalizedTime * timeSteps)));
+    }
+
+    /**
+     * Returns the number of bytes of a bit mask of the given size.
+     * @param bits
+     * @return
+     */
+    protected static int maskSize(int bits) {
+        return (bits + 7) >> 3;
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte.
+     * @param buf
+     * @param value
+     */
+    protected static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     * @param buf
+     * @return
+     */
+    protected static int getVarInt(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Returns the number of bytes of an unsigned varint.
+     * @param value
+     * @return
+     */
+    protected static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a signed value as a zigzag varint, so small negative values take
+     * few bytes.
+     * @param buf
+     * @param value
+     */
+    protected static void putSignedVarInt(ByteBuffer buf, int value) {
+        putVarInt(buf, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Reads a zigzag varint.
+     * @param buf
+     * @return
+     */
+    protected static int getSignedVarInt(ByteBuffer buf) {
+        int value = getVarInt(buf);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.capdevon.anim.fsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Applies the payloads written by an {@link AnimatorStateEncoder} to a
+ * remote AnimatorController built from the same graph. The parameters are
+ * written through the setters of the controller, so its transitions keep
+ * running locally between payloads. The received states are only compared
+ * with the local ones by {@link #reconcile()}, called after the update of the
+ * controller: a state the local transitions have reached, and blended into,
+ * is left alone, and a layer still in another state after
+ * {@link #setGraceUpdates(int) graceUpdates} updates is switched to the
+ * received state without blending. When the local normalized time drifts
+ * more than {@link #setTimeTolerance(double) timeTolerance} from the
+ * received one the state is restarted at the received time.
+ *
+ * @author capdevon
+ */
+public class AnimatorStateDecoder extends AnimatorStateCodec {
+
+    //The largest difference of normalized time corrected without restarting the state.
+    protected double timeTolerance = 0.05;
+    //The number of local updates a layer may stay in another state than the received one.
+    protected int graceUpdates = 1;
+    //The number of states forced and of times corrected by the payloads.
+    protected long stateCorrections;
+    protected long timeCorrections;
+    //The last state received for each layer and not yet reconciled, or null.
+    protected AnimatorState[] receivedStates = new AnimatorState[0];
+    //The normalized time received with the state, or NaN.
+    protected double[] receivedTimes = new double[0];
+    //The number of updates reconciled since the state was received.
+    protected int[] receivedAges = new int[0];
+
+    /**
+     * Constructor.
+     * @param animator
+     */
+    public AnimatorStateDecoder(AnimatorController animator) {
+        super(animator);
+    }
+
+    public double getTimeTolerance() {
+        return timeTolerance;
+    }
+
+    /**
+     * Sets the largest difference between the local and the received
+     * normalized time that is left uncorrected.
+     * @param timeTolerance
+     */
+    public void setTimeTolerance(double timeTolerance) {
+        if (timeTolerance < 0) {
+            throw new IllegalArgumentException("Time tolerance must not be negative: " + timeTolerance);
+        }
+        this.timeTolerance = timeTolerance;
+    }
+
+    public int getGraceUpdates() {
+        return graceUpdates;
+    }
+
+    /**
+     * Sets the number of local updates a layer may stay in another state than
+     * the received one before it is switched to it. The local transitions
+     * usually reach the received state on their own, with blending.
+     * @param graceUpdates
+     */
+    public void setGraceUpdates(int graceUpdates) {
+        if (graceUpdates < 1) {
+            throw new IllegalArgumentException("Grace updates must be greater than zero: " + graceUpdates);
+        }
+        this.graceUpdates = graceUpdates;
+    }
+
+    /**
+     * Returns the number of times a layer has been switched to the received
+     * state.
+     * @return
+     */
+    public long getStateCorrections() {
+        return stateCorrections;
+    }
+
+    /**
+     * Returns the number of times the normalized time of a layer has been
+     * corrected.
+     * @return
+     */
+    public long getTimeCorrections() {
+        return timeCorrections;
+    }
+
+    /**
+     * Reads a payload and applies its parameters to the controller. The
+     * states are reconciled by the next call to {@link #reconcile()}.
+     * @param in
+     */
+    public void decode(ByteBuffer in) {
+        if (receivedStates.length != animator.layerStates.length) {
+            resize();
+        }
+
+        boolean keyframe = (in.get() & KEYFRAME) != 0;
+        int parameterCount = animator.parameterCount;
+        int layerCount = animator.layers.size();
+
+        int maskStart = in.position();
+        if (!keyframe) {
+            in.position(maskStart + maskSize(parameterCount));
+        }
+        for (int id = 0; id < parameterCount; id++) {
+            if (keyframe ? isReplicated(id) : (in.get(maskStart + (id >> 3)) & (1 << (id & 7))) != 0) {
+                readParameter(in, id);
+            }
+        }
+
+        maskStart = in.position();
+        if (!keyframe) {
+            in.position(maskStart + maskSize(layerCount));
+        }
+        for (int i = 0; i < layerCount; i++) {
+            if (keyframe || (in.get(maskStart + (i >> 3)) & (1 << (i & 7))) != 0) {
+                readLayer(in, i);
+            }
+        }
+    }
+
+    private void readParameter(ByteBuffer in, int id) {
+        switch (animator.parameterTable[id].type) {
+            case Float:
+                animator.setFloat(id, getSignedVarInt(in) * floatStep);
+                break;
+            case Int:
+                animator.setInt(id, getSignedVarInt(in));
+                break;
+            case Bool:
+                animator.setBool(id, in.get() != 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Trigger parameters are not replicated: " + id);
+        }
+    }
+
+    private void readLayer(ByteBuffer in, int layerIndex) {
+        int flags = in.get();
+
+        AnimatorState state = animator.layerStates[layerIndex].currentState;
+        if ((flags & LAYER_STATE) != 0) {
+            AnimatorState[] table = animator.layers.get(layerIndex).getStateTable(animator);
+            int index = getVarInt(in);
+            if (index >= table.length) {
+                throw new IllegalArgumentException("Unknown state index " + index + " in layer " + layerIndex);
+            }
+            state = table[index];
+        }
+
+        double time = Double.NaN;
+        if ((flags & LAYER_TIME) != 0) {
+            time = (double) getSignedVarInt(in) / timeSteps;
+        }
+
+        receivedStates[layerIndex] = state;
+        receivedTimes[layerIndex] = time;
+        receivedAges[layerIndex] = 0;
+    }
+
+    /**
+     * Compares the current states with the received ones. Call it once per
+     * update, after the update of the controller, so that the local
+     * transitions get a chance to reach the received states first.
+     */
+    public void reconcile() {
+        for (int i = 0; i < receivedStates.length; i++) {
+            AnimatorState state = receivedStates[i];
+            if (state == null) {
+                continue;
+            }
+
+            AnimatorStateInfo info = animator.layerStates[i];
+            double time = receivedTimes[i];
+            if (state == info.currentState) {
+                if (!Double.isNaN(time) && Math.abs(info.normalizedTime - time) > timeTolerance) {
+                    animator.play(i, state, time);
+                    timeCorrections++;
+                }
+            } else if (++receivedAges[i] >= graceUpdates) {
+                animator.play(i, state, Double.isNaN(time) ? 0 : time);
+                stateCorrections++;
+            } else {
+                // still waiting for the local transitions
+                continue;
+            }
+            receivedStates[i] = null;
+        }
+    }
+
+    private void resize() {
+        int layerCount = animator.layerStates.length;
+        receivedStates = Arrays.copyOf(receivedStates, layerCount);
+        receivedTimes = Arrays.copyOf(receivedTimes, layerCount);
+        receivedAges = Arrays.copyOf(receivedAges, layerCount);
+    }
+
+}
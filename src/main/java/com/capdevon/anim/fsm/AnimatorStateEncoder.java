@@ -0,0 +1,221 @@
+package com.capdevon.anim.fsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes the changes of an AnimatorController, for example on a server, so
+ * that an {@link AnimatorStateDecoder} can reproduce its state on remote
+ * controllers built from the same graph. Parameters are written only when
+ * their quantized value changes, the state of a layer only when it changes,
+ * and its normalized time with the state or every
+ * {@link #setTimeSyncInterval(int) timeSyncInterval} ticks.
+ * <p>
+ * The values sent are remembered only once {@link #commit()} is called, so a
+ * payload that is not sent (see {@link AnimatorStateStream}) is merged into
+ * the next one. The payloads are deltas: they must be delivered reliably and
+ * in order, and each receiver needs its own encoder, or a
+ * {@link #requestKeyframe() keyframe} when it joins.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class AnimatorStateEncoder extends AnimatorStateCodec {
+
+    //The values of the parameters last committed, and the values of the payload being staged, as written on the wire.
+    protected int[] sentValues = new int[0];
+    protected int[] stagedValues = new int[0];
+    //The state index and quantized normalized time of each layer last committed and staged.
+    protected int[] sentStates = new int[0];
+    protected int[] stagedStates = new int[0];
+    protected int[] sentTimes = new int[0];
+    protected int[] stagedTimes = new int[0];
+    //The tick the time of each layer was last committed.
+    protected int[] timeTicks = new int[0];
+    //The parameters and the layers included in the staged payload.
+    protected byte[] parameterMask = new byte[0];
+    protected byte[] layerMask = new byte[0];
+    //The time of a layer is resent after this number of ticks.
+    protected int timeSyncInterval = 30;
+    //The number of payloads encoded.
+    protected int tick = 0;
+    //True if the next payload must be a keyframe, and true if the staged payload is one.
+    protected boolean keyframeRequested = true;
+    protected boolean stagedKeyframe = false;
+    protected boolean staged = false;
+    //The graph version the arrays were sized for.
+    private int graphVersion = -1;
+
+    /**
+     * Constructor. The first payload is a keyframe.
+     * @param animator
+     */
+    public AnimatorStateEncoder(AnimatorController animator) {
+        super(animator);
+    }
+
+    public int getTimeSyncInterval() {
+        return timeSyncInterval;
+    }
+
+    /**
+     * Sets the number of ticks after which the normalized time of a layer is
+     * resent, to correct the drift of the remote controllers. The time is
+     * always sent with a new state.
+     * @param timeSyncInterval
+     */
+    public void setTimeSyncInterval(int timeSyncInterval) {
+        if (timeSyncInterval <= 0) {
+            throw new IllegalArgumentException("Time sync interval must be positive: " + timeSyncInterval);
+        }
+        this.timeSyncInterval = timeSyncInterval;
+    }
+
+    /**
+     * Makes the next payload a keyframe, holding the full state of the
+     * controller.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Writes the changes since the last committed payload and stages them.
+     * Nothing is written if there are no changes. Call {@link #commit()} once
+     * the payload has been sent.
+     *
+     * @param out
+     * @return true if a payload has been written.
+     */
+    public boolean encode(ByteBuffer out) {
+        if (graphVersion != animator.graphVersion) {
+            resize();
+        }
+        tick++;
+
+        boolean keyframe = keyframeRequested;
+        int parameterCount = animator.parameterCount;
+        int layerCount = sentStates.length;
+        boolean changed = keyframe;
+
+        Arrays.fill(parameterMask, (byte) 0);
+        for (int id = 0; id < parameterCount; id++) {
+            if (isReplicated(id)) {
+                int value = quantizeParameter(id);
+                stagedValues[id] = value;
+                if (value != sentValues[id]) {
+                    parameterMask[id >> 3] |= 1 << (id & 7);
+                    changed = true;
+                }
+            }
+        }
+
+        Arrays.fill(layerMask, (byte) 0);
+        for (int i = 0; i < layerCount; i++) {
+            AnimatorStateInfo info = animator.layerStates[i];
+            int state = info.currentState.stateIndex;
+            int time = quantizeTime(info.normalizedTime);
+            stagedStates[i] = state;
+            stagedTimes[i] = time;
+            if (state != sentStates[i] || (tick - timeTicks[i] >= timeSyncInterval && time != sentTimes[i])) {
+                layerMask[i >> 3] |= 1 << (i & 7);
+                changed = true;
+            }
+        }
+
+        staged = changed;
+        stagedKeyframe = keyframe;
+        if (!changed) {
+            return false;
+        }
+
+        out.put((byte) (keyframe ? KEYFRAME : 0));
+        if (!keyframe) {
+            out.put(parameterMask, 0, maskSize(parameterCount));
+        }
+        for (int id = 0; id < parameterCount; id++) {
+            if (keyframe ? isReplicated(id) : (parameterMask[id >> 3] & (1 << (id & 7))) != 0) {
+                putParameter(out, id, stagedValues[id]);
+            }
+        }
+
+        if (!keyframe) {
+            out.put(layerMask, 0, maskSize(layerCount));
+        }
+        for (int i = 0; i < layerCount; i++) {
+            if (keyframe || (layerMask[i >> 3] & (1 << (i & 7))) != 0) {
+                // a new state always comes with its time
+                out.put((byte) (LAYER_STATE | LAYER_TIME));
+                putVarInt(out, stagedStates[i]);
+                putSignedVarInt(out, stagedTimes[i]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the values written by the last call to
+     * {@link #encode(ByteBuffer)} as received by the decoder.
+     */
+    public void commit() {
+        if (!staged) {
+            return;
+        }
+        int parameterCount = animator.parameterCount;
+        for (int id = 0; id < parameterCount; id++) {
+            if (stagedKeyframe || (parameterMask[id >> 3] & (1 << (id & 7))) != 0) {
+                sentValues[id] = stagedValues[id];
+            }
+        }
+        for (int i = 0; i < sentStates.length; i++) {
+            if (stagedKeyframe || (layerMask[i >> 3] & (1 << (i & 7))) != 0) {
+                sentStates[i] = stagedStates[i];
+                sentTimes[i] = stagedTimes[i];
+                timeTicks[i] = tick;
+            }
+        }
+        if (stagedKeyframe) {
+            keyframeRequested = false;
+        }
+        staged = false;
+    }
+
+    private void putParameter(ByteBuffer out, int id, int value) {
+        switch (animator.parameterTable[id].type) {
+            case Bool:
+                out.put((byte) value);
+                break;
+            default:
+                putSignedVarInt(out, value);
+                break;
+        }
+    }
+
+    /**
+     * Sizes the arrays for the parameters and layers of the controller, and
+     * assigns the state indices. A keyframe is sent after a graph change.
+     */
+    private void resize() {
+        int capacity = animator.parameterTable.length;
+        int layerCount = animator.layers.size();
+        for (int i = 0; i < layerCount; i++) {
+            animator.layers.get(i).getStateTable(animator);
+        }
+
+        sentValues = Arrays.copyOf(sentValues, capacity);
+        stagedValues = new int[capacity];
+        parameterMask = new byte[maskSize(capacity)];
+
+        sentStates = Arrays.copyOf(sentStates, layerCount);
+        stagedStates = new int[layerCount];
+        sentTimes = Arrays.copyOf(sentTimes, layerCount);
+        stagedTimes = new int[layerCount];
+        timeTicks = Arrays.copyOf(timeTicks, layerCount);
+        layerMask = new byte[maskSize(layerCount)];
+
+        keyframeRequested = true;
+        staged = false;
+        graphVersion = animator.graphVersion;
+    }
+
+}
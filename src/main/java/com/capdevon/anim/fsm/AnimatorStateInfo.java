@@ -0,0 +1,127 @@
+package com.capdevon.anim.fsm;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.capdevon.anim.LayerBlendAction;
+
+/**
+ * Information about the current state of a layer of an AnimatorController.
+ * The state machine graph can be shared by many controllers, each one holding
+ * its own AnimatorStateInfo per layer.
+ *
+ * @author capdevon
+ */
+public class AnimatorStateInfo {
+
+    //The current state of the layer.
+    protected AnimatorState currentState;
+    //The transition selected by the last evaluation, waiting to be applied.
+    protected AnimatorStateTransition pendingTransition;
+    //The state, parameter version and graph version of the last full evaluation.
+    protected AnimatorState evaluatedState;
+    protected int evaluatedVersion;
+    protected int evaluatedGraphVersion;
+    //The normalized time of the last evaluation, full or skipped.
+    protected double evaluatedTime;
+    //The normalized time of the current state. The integer part is the number of completed loops.
+    protected double normalizedTime;
+    //The transition in progress, the state it started from and its elapsed time in seconds.
+    protected AnimatorStateTransition activeTransition;
+    protected AnimatorState previousState;
+    protected double transitionTime;
+    //The name of the AnimComposer layer.
+    protected String layerName;
+    //The current weight of the layer.
+    protected float weight;
+    //True if the layer is hidden by the layers above it in the current frame.
+    protected boolean culled;
+    //The triggers set and not yet consumed by the layer, indexed by parameter id.
+    protected final BitSet triggers = new BitSet();
+    //The triggers that were pending when the current update started, reset at its end.
+    protected final BitSet updateTriggers = new BitSet();
+    //The action blending the layer with the layers below it.
+    protected final LayerBlendAction layerAction = new LayerBlendAction();
+    //The runtime state of the blend trees played by the layer, created the first time each tree is played.
+    protected final Map<BlendTree, BlendTreeInfo> blendTreeInfos = new IdentityHashMap<>();
+
+    /**
+     * Constructor.
+     * @param layer     - The layer described by this info.
+     * @param baseLayer - True for the first layer, which always has weight 1.
+     */
+    protected AnimatorStateInfo(AnimatorControllerLayer layer, boolean baseLayer) {
+        this.currentState = layer.stateMachine.anyState;
+        this.layerName = layer.name;
+        this.weight = baseLayer ? 1f : layer.defaultWeight;
+    }
+
+    /**
+     * InternalCall. Returns the runtime state of the given blend tree in the
+     * layer.
+     * @param blendTree
+     * @return
+     */
+    protected BlendTreeInfo getBlendTreeInfo(BlendTree blendTree) {
+        BlendTreeInfo info = blendTreeInfos.get(blendTree);
+        if (info == null) {
+            info = new BlendTreeInfo(blendTree);
+            blendTreeInfos.put(blendTree, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the current state of the layer.
+     * @return
+     */
+    public AnimatorState getCurrentState() {
+        return currentState;
+    }
+
+    /**
+     * Returns true if the layer is blending from the previous state to the
+     * current state.
+     * @return
+     */
+    public boolean isInTransition() {
+        return activeTransition != null;
+    }
+
+    /**
+     * Returns the transition in progress, or null.
+     * @return
+     */
+    public AnimatorStateTransition getActiveTransition() {
+        return activeTransition;
+    }
+
+    /**
+     * Returns the normalized time of the current state. The integer part is
+     * the number of times the state has looped, the fractional part is the
+     * progress of the current loop.
+     * @return
+     */
+    public double getNormalizedTime() {
+        return normalizedTime;
+    }
+
+    /**
+     * Returns the current weight of the layer.
+     * @return
+     */
+    public float getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns true if the layer was hidden by the layers above it, and
+     * therefore not evaluated, in the last update.
+     * @return
+     */
+    public boolean isCulled() {
+        return culled;
+    }
+
+}
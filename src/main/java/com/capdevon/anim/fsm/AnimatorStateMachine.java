@@ -5,6 +5,7 @@
  */
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -13,17 +14,23 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.capdevon.anim.WeightedBlendAction;
 import com.capdevon.anim.fsm.BlendTree.BlendTreeType;
+import com.jme3.anim.AnimComposer;
 import com.jme3.anim.tween.action.Action;
-import com.jme3.anim.tween.action.BlendAction;
-import com.jme3.anim.tween.action.LinearBlendSpace;
+import com.jme3.anim.tween.action.BlendableAction;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 
 /**
  * A graph controlling the interaction of states. Each state references a motion.
  * 
  * @author capdevon
  */
-public class AnimatorStateMachine {
+public class AnimatorStateMachine implements Savable {
 
     private static final Logger logger = Logger.getLogger(AnimatorStateMachine.class.getName());
 
@@ -31,15 +38,27 @@ public class AnimatorStateMachine {
 
     //The name of the state machine.
     protected String layerName;
+    //The name of a sub-state machine.
+    protected String name;
+    //The state machine containing this sub-state machine, or null.
+    protected AnimatorStateMachine parent;
+    //The list of sub-state machines.
+    protected Map<String, AnimatorStateMachine> stateMachines = new HashMap<>();
+    //The transitions taken when a state of this sub-state machine goes to the Exit node.
+    protected List<AnimatorStateTransition> transitions = new ArrayList<>();
     //The anyState, not a proper state but used as dummy.
     protected AnimatorState anyState;
-    //The state that the state machine will be in when it starts.
-    protected AnimatorState currentState;
     //The list of states.
     protected Map<String, AnimatorState> states = new HashMap<>();
     //The list of listeners.
     protected List<StateMachineListener> listeners = new ArrayList<>();
 
+    /**
+     * constructor for serialization only
+     */
+    protected AnimatorStateMachine() {
+    }
+
     /**
      * Constructor.
      * @param animator
@@ -47,11 +66,34 @@ public class AnimatorStateMachine {
     protected AnimatorStateMachine(AnimatorController animator) {
         this.animator = animator;
         anyState = new AnimatorState("AnyState", animator);
-        currentState = anyState;
+        anyState.stateMachine = this;
+    }
+
+    /**
+     * InternalCall. Attaches the state machine to the given controller after
+     * it has been read, and prepares the blend trees of its states.
+     * @param animator
+     */
+    protected void attach(AnimatorController animator) {
+        this.animator = animator;
+        anyState.attach(animator);
+        for (AnimatorState state : states.values()) {
+            state.attach(animator);
+            if (state.motion instanceof BlendTree) {
+                prepareBlendTree((BlendTree) state.motion);
+            }
+        }
+        for (AnimatorStateTransition transition : transitions) {
+            transition.attach(animator);
+        }
+        for (AnimatorStateMachine sm : stateMachines.values()) {
+            sm.attach(animator);
+        }
     }
 
     /**
-     * Adds a new listener.
+     * Adds a new listener. The listeners belong to the graph, so they are
+     * notified by every controller sharing it.
      * @param listener The listener to add.
      */
     public void addListener(StateMachineListener listener) {
@@ -81,6 +123,91 @@ public class AnimatorStateMachine {
         anyState.addTransition(state);
     }
 
+    /**
+     * Returns the state the state machine enters from its Entry node, or null
+     * if no default state has been set.
+     * @return
+     */
+    public AnimatorState getDefaultState() {
+        return anyState.transitions.isEmpty() ? null : anyState.transitions.get(0).destinationState;
+    }
+
+    /**
+     * Utility function to add a sub-state machine. The sub-state machine is
+     * entered through its default state, and left through the Exit node
+     * (see {@link AnimatorState#addExitTransition()}). The hierarchy is
+     * flattened into direct state to state transitions, so nesting has no
+     * runtime cost.
+     * 
+     * @param name - The name of the sub-state machine.
+     * @return
+     */
+    public AnimatorStateMachine addStateMachine(String name) {
+        animator.graphChanged();
+        if (stateMachines.containsKey(name)) {
+            String error = String.format("StateMachine '%s' already exists in state machine", name);
+            throw new IllegalArgumentException(error);
+        }
+
+        AnimatorStateMachine sm = new AnimatorStateMachine(animator);
+        sm.name = name;
+        sm.layerName = layerName;
+        sm.parent = this;
+        stateMachines.put(name, sm);
+        return sm;
+    }
+
+    /**
+     * Returns the sub-state machine with the given name or null if it is not found.
+     * @param name
+     * @return
+     */
+    public AnimatorStateMachine getStateMachine(String name) {
+        return stateMachines.get(name);
+    }
+
+    /**
+     * Returns a read only collection of the sub-state machines.
+     * @return
+     */
+    public Collection<AnimatorStateMachine> getStateMachines() {
+        return stateMachines.values();
+    }
+
+    /**
+     * Utility function to add an outgoing transition from this sub-state
+     * machine to the destination state. The transition is taken when a state
+     * of this sub-state machine goes to the Exit node and the conditions of
+     * both transitions are met.
+     * 
+     * @param destinationState The destination state.
+     * @return
+     */
+    public AnimatorStateTransition addTransition(AnimatorState destinationState) {
+        AnimatorStateTransition transition = new AnimatorStateTransition(animator);
+        transition.destinationState = destinationState;
+        transitions.add(transition);
+        animator.graphChanged();
+        return transition;
+    }
+
+    /**
+     * Utility function to add an outgoing transition from this sub-state
+     * machine to another sub-state machine.
+     * 
+     * @param destinationStateMachine The destination state machine.
+     * @return
+     */
+    public AnimatorStateTransition addTransition(AnimatorStateMachine destinationStateMachine) {
+        AnimatorStateTransition transition = addTransition((AnimatorState) null);
+        transition.destinationStateMachine = destinationStateMachine;
+        return transition;
+    }
+
+    public String getName() {
+        return name;
+    }
+
     /**
      * Creates a BlendTree in a new AnimatorState.
      * @param stateName
@@ -89,28 +216,115 @@ public class AnimatorStateMachine {
      */
     public AnimatorState createBlendTree(String stateName, BlendTree blendTree) {
 
-        if (blendTree.blendType == BlendTreeType.Simple1D) {
+        prepareBlendTree(blendTree);
+
+        if (blendTree.leafClips == null && blendTree.blendType == BlendTreeType.SimpleDirectional2D) {
+            // the childs are played one at a time
+            blendTree.name = null;
+        } else {
+            blendTree.name = stateName;
+        }
+
+        createActions(animator.animComposer, blendTree);
+        return addState(stateName, blendTree);
+    }
 
-            if (blendTree.motions.size() < 2) {
+    /**
+     * Validates the BlendTree, resolves its parameters and builds its
+     * lookup structures.
+     */
+    private void prepareBlendTree(BlendTree blendTree) {
+        if (blendTree.hasNestedChilds()) {
+            // the hierarchy is flattened, and played by a single action
+            blendTree.compile();
+            blendTree.bind(animator);
+
+        } else {
+            blendTree.leafClips = null;
+            blendTree.bind(animator);
+
+            if (blendTree.blendType == BlendTreeType.Direct) {
+                if (blendTree.motions.isEmpty()) {
+                    throw new IllegalArgumentException("BlendTree requires at least 1 animation");
+                }
+            } else if (blendTree.motions.size() < 2 && blendTree.blendType != BlendTreeType.SimpleDirectional2D) {
                 throw new IllegalArgumentException("BlendTree requires at least 2 animations");
             }
 
-            blendTree.name = stateName;
+            if (blendTree.blendType == BlendTreeType.FreeformDirectional2D
+                    || blendTree.blendType == BlendTreeType.FreeformCartesian2D) {
+                blendTree.buildFreeformSpace();
+            }
+        }
+    }
 
-            LinearBlendSpace blendSpace = new LinearBlendSpace(blendTree.minThreshold, blendTree.maxThreshold);
-            String[] clips = blendTree.getAnimMotionsNames();
-            BlendAction action = animator.animComposer.actionBlended(blendTree.name, blendSpace, clips);
-            logger.log(Level.INFO, "BlendAction created: {0}", blendTree.name);
+    /**
+     * InternalCall. Creates the actions of all the states of this state
+     * machine and of its sub-state machines in the given AnimComposer.
+     * @param composer
+     */
+    protected void createActions(AnimComposer composer) {
+        for (AnimatorState state : states.values()) {
+            createActions(composer, state.motion);
+        }
+        for (AnimatorStateMachine sm : stateMachines.values()) {
+            sm.createActions(composer);
+        }
+    }
+
+    /**
+     * Creates the actions played by the given motion.
+     */
+    private void createActions(AnimComposer composer, Motion motion) {
+        if (motion instanceof BlendTree) {
+            BlendTree blendTree = (BlendTree) motion;
+
+            if (blendTree.leafClips != null) {
+                createWeightedBlendAction(composer, blendTree, blendTree.leafClips);
 
-        } else if (blendTree.blendType == BlendTreeType.SimpleDirectional2D) {
+            } else if (blendTree.blendType == BlendTreeType.SimpleDirectional2D) {
+                for (ChildMotion childMotion : blendTree.motions) {
+                    Action action = composer.action(childMotion.animName);
+                    logger.log(Level.FINE, "ActionClip created: {0}", action);
+                }
 
-            for (ChildMotion childMotion : blendTree.motions) {
-                Action action = animator.animComposer.action(childMotion.animName);
-                logger.log(Level.INFO, "ActionClip created: {0}", action);
+            } else {
+                createWeightedBlendAction(composer, blendTree, blendTree.getAnimMotionsNames());
             }
+
+        } else if (motion.name != null) {
+            Action action = composer.action(motion.name);
+            logger.log(Level.FINE, "ActionClip created: {0}", action);
         }
+    }
 
-        return addState(stateName, blendTree);
+    /**
+     * InternalCall. Compiles the transitions of all the states of this state
+     * machine and of its sub-state machines.
+     */
+    protected void compileTransitions() {
+        anyState.compileTransitions();
+        for (AnimatorState state : states.values()) {
+            state.compileTransitions();
+        }
+        for (AnimatorStateMachine sm : stateMachines.values()) {
+            sm.compileTransitions();
+        }
+    }
+
+    /**
+     * Creates a single action blending the given clips.
+     */
+    private void createWeightedBlendAction(AnimComposer composer, BlendTree blendTree, String[] clips) {
+        BlendableAction[] actions = new BlendableAction[clips.length];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = (BlendableAction) composer.action(clips[i]);
+        }
+        WeightedBlendAction action = new WeightedBlendAction(actions);
+        // the weights of a Direct tree are absolute blend factors
+        action.setNormalized(blendTree.blendType != BlendTreeType.Direct);
+        composer.addAction(blendTree.name, action);
+        logger.log(Level.FINE, "WeightedBlendAction created: {0}", blendTree.name);
     }
 
     /**
@@ -121,11 +335,9 @@ public class AnimatorStateMachine {
      */
     public AnimatorState addState(String stateName, String animName) {
         
-    	Action action = animator.animComposer.action(animName);
-    	logger.log(Level.INFO, "ActionClip created: {0}", action);
-        
         Motion motion = new Motion();
         motion.name = animName;
+        createActions(animator.animComposer, motion);
         return addState(stateName, motion);
     }
     
@@ -145,6 +357,7 @@ public class AnimatorStateMachine {
      * @return
      */
     private AnimatorState addState(String stateName, Motion motion) {
+    	animator.graphChanged();
     	if (states.containsKey(stateName)) {
             String error = String.format("State '%s' already exists in state machine", stateName);
             throw new IllegalArgumentException(error);
@@ -152,6 +365,7 @@ public class AnimatorStateMachine {
     	
     	AnimatorState state = new AnimatorState(stateName, animator);
         state.motion = motion;
+        state.stateMachine = this;
         states.put(stateName, state);
         return state;
     }
@@ -161,6 +375,7 @@ public class AnimatorStateMachine {
      * @param stateName
      */
     public void removeState(String stateName) {
+        animator.graphChanged();
         AnimatorState state = findState(stateName);
         String animName = state.motion.name;
         if (animName != null) {
@@ -203,26 +418,263 @@ public class AnimatorStateMachine {
 
     /**
      * InternalCall
+     * @param animator - The controller running the state machine.
+     * @param info - The runtime state of the layer.
      * @param tpf
      */
-    protected void update(float tpf) {
-        AnimatorState nextState = currentState.checkTransitions(layerName);
+    protected void update(AnimatorController animator, AnimatorStateInfo info, float tpf) {
+        evaluateTransitions(animator, info);
+        applyTransition(animator, info, tpf);
+    }
+
+    /**
+     * InternalCall. Evaluates the transitions of the current state without
+     * modifying the controller or the AnimComposer, so it can run on a worker
+     * thread. The result is consumed by {@link #applyTransition}.
+     * The evaluation is skipped when none of the parameters read by the
+     * transitions changed and no exit time has been passed since the last one.
+     * @param animator - The controller running the state machine.
+     * @param info - The runtime state of the layer.
+     */
+    protected void evaluateTransitions(AnimatorController animator, AnimatorStateInfo info) {
+        if (info.activeTransition != null) {
+            info.pendingTransition = findInterruption(animator, info);
+            return;
+        }
 
-        if (currentState != nextState) {
+        AnimatorState currentState = info.currentState;
+        double time = info.normalizedTime;
+        if (currentState == info.evaluatedState
+                && info.evaluatedGraphVersion == animator.graphVersion
+                && !currentState.hasChangedDependencies(animator, info.evaluatedVersion)
+                && !currentState.isExitTimeCrossed(info.evaluatedTime, time)) {
+            // no input of the outgoing transitions changed since the last evaluation
+            info.evaluatedTime = time;
+            info.pendingTransition = null;
+            return;
+        }
 
-            listeners.forEach(listener -> listener.onStateChanged(currentState, nextState));
+        info.evaluatedState = currentState;
+        info.evaluatedVersion = animator.parameterVersion;
+        info.evaluatedGraphVersion = animator.graphVersion;
+        info.evaluatedTime = time;
+        info.pendingTransition = currentState.findTransition(animator, info);
+    }
 
-            logger.log(Level.INFO, "onStateExit: {0}", currentState);
-            currentState.behaviours.forEach(behaviour -> behaviour.onStateExit(animator));
+    /**
+     * Returns the first transition that can interrupt the transition in
+     * progress, according to its interruption source.
+     */
+    private AnimatorStateTransition findInterruption(AnimatorController animator, AnimatorStateInfo info) {
+        AnimatorStateTransition active = info.activeTransition;
+        AnimatorStateTransition transition = null;
 
+        switch (active.interruptionSource) {
+            case Source:
+                transition = info.previousState.findInterruption(animator, info, active);
+                break;
+            case Destination:
+                transition = info.currentState.findTransition(animator, info);
+                break;
+            case SourceThenDestination:
+                transition = info.previousState.findInterruption(animator, info, active);
+                if (transition == null) {
+                    transition = info.currentState.findTransition(animator, info);
+                }
+                break;
+            case DestinationThenSource:
+                transition = info.currentState.findTransition(animator, info);
+                if (transition == null) {
+                    transition = info.previousState.findInterruption(animator, info, active);
+                }
+                break;
+            default:
+                break;
+        }
+        return transition;
+    }
+
+    /**
+     * InternalCall. Applies the transition selected by the last evaluation
+     * and updates the current state.
+     * @param animator - The controller running the state machine.
+     * @param info - The runtime state of the layer.
+     * @param tpf
+     */
+    protected void applyTransition(AnimatorController animator, AnimatorStateInfo info, float tpf) {
+        AnimatorStateTransition transition = info.pendingTransition;
+        info.pendingTransition = null;
+
+        AnimatorState currentState = info.currentState;
+        AnimatorState nextState = currentState;
+        if (transition != null) {
+            transition.consumeTriggers(info);
+            nextState = currentState.doTransition(animator, transition, info);
+            // the transition from the Entry node has nothing to interrupt
+            info.activeTransition = (currentState != anyState) ? transition : null;
+            info.previousState = currentState;
+            info.transitionTime = 0;
+            // the state may be entered again with the same parameters, through an interruption
+            info.evaluatedState = null;
+        }
+
+        if (currentState != nextState) {
+            changeState(animator, info, nextState);
             currentState = nextState;
+        }
+
+        if (AnimatorMetrics.ENABLED && currentState.motion instanceof BlendTree) {
+            long time = System.nanoTime();
+            currentState.update(animator, info, tpf);
+            animator.metrics.blendTreeNanos += System.nanoTime() - time;
+        } else {
+            currentState.update(animator, info, tpf);
+        }
+
+        StateMachineBehaviour[] behaviours = currentState.updateBehaviours;
+        if (AnimatorMetrics.ENABLED && behaviours.length > 0) {
+            long time = System.nanoTime();
+            for (int i = 0; i < behaviours.length; i++) {
+                behaviours[i].onStateUpdate(animator, tpf);
+            }
+            animator.metrics.behaviourNanos += System.nanoTime() - time;
+        } else {
+            for (int i = 0; i < behaviours.length; i++) {
+                behaviours[i].onStateUpdate(animator, tpf);
+            }
+        }
+    }
+    
+    /**
+     * Makes the given state the current state of the layer, notifying the
+     * listeners and the behaviours of both states.
+     */
+    private void changeState(AnimatorController animator, AnimatorStateInfo info, AnimatorState nextState) {
+        AnimatorState currentState = info.currentState;
+        long time = AnimatorMetrics.ENABLED ? System.nanoTime() : 0;
+
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onStateChanged(currentState, nextState);
+        }
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "onStateExit: {0}", currentState);
+        }
+        StateMachineBehaviour[] behaviours = currentState.behaviours;
+        for (int i = 0; i < behaviours.length; i++) {
+            behaviours[i].onStateExit(animator);
+        }
+
+        info.currentState = nextState;
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "onStateEnter: {0}", nextState);
+        }
+        behaviours = nextState.behaviours;
+        for (int i = 0; i < behaviours.length; i++) {
+            behaviours[i].onStateEnter(animator);
+        }
 
-            logger.log(Level.INFO, "onStateEnter: {0}", currentState);
-            currentState.behaviours.forEach(behaviour -> behaviour.onStateEnter(animator));
+        if (AnimatorMetrics.ENABLED) {
+            animator.metrics.stateChanges++;
+            animator.metrics.behaviourNanos += System.nanoTime() - time;
         }
+    }
 
-        currentState.update(layerName, tpf);
-        currentState.behaviours.forEach(behaviour -> behaviour.onStateUpdate(animator, tpf));
+    /**
+     * InternalCall. Makes the given state the current state of the layer and
+     * starts its motion at the given normalized time, without evaluating the
+     * transitions and without blending. Any transition in progress is
+     * dropped. The listeners and the behaviours are notified only if the
+     * state changes.
+     * @param animator - The controller running the state machine.
+     * @param info - The runtime state of the layer.
+     * @param state
+     * @param normalizedTime
+     */
+    protected void play(AnimatorController animator, AnimatorStateInfo info, AnimatorState state, double normalizedTime) {
+        info.pendingTransition = null;
+        info.activeTransition = null;
+        info.previousState = null;
+        info.transitionTime = 0;
+        info.evaluatedState = null;
+
+        state.play(animator, info, normalizedTime);
+        if (info.currentState != state) {
+            changeState(animator, info, state);
+        }
+    }
+
+    /**
+     * InternalCall. Returns true if a condition or a blend tree of this state
+     * machine or of its sub-state machines reads the given parameter.
+     * @param parameter - The name of the parameter.
+     * @return
+     */
+    protected boolean usesParameter(String parameter) {
+        if (anyState.usesParameter(parameter)) {
+            return true;
+        }
+        for (AnimatorState state : states.values()) {
+            if (state.usesParameter(parameter)) {
+                return true;
+            }
+        }
+        for (AnimatorStateTransition transition : transitions) {
+            if (transition.usesParameter(parameter)) {
+                return true;
+            }
+        }
+        for (AnimatorStateMachine sm : stateMachines.values()) {
+            if (sm.usesParameter(parameter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Collects the states of this state machine and of its
+     * sub-state machines, keyed by their path from the root state machine.
+     * @param prefix - The path of this state machine.
+     * @param result
+     */
+    protected void collectStates(String prefix, Map<String, AnimatorState> result) {
+        for (AnimatorState state : states.values()) {
+            result.put(prefix + state.name, state);
+        }
+        for (AnimatorStateMachine sm : stateMachines.values()) {
+            sm.collectStates(prefix + sm.name + "/", result);
+        }
     }
     
+    /**
+     * Writes the states, the transitions and the sub-state machines.
+     * The listeners and the behaviours are code, and are not saved.
+     */
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(layerName, "layerName", null);
+        oc.write(name, "name", null);
+        oc.write(parent, "parent", null);
+        oc.write(anyState, "anyState", null);
+        oc.writeStringSavableMap(states, "states", null);
+        oc.writeStringSavableMap(stateMachines, "stateMachines", null);
+        oc.writeSavableArrayList(new ArrayList<>(transitions), "transitions", null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        layerName = ic.readString("layerName", null);
+        name = ic.readString("name", null);
+        parent = (AnimatorStateMachine) ic.readSavable("parent", null);
+        anyState = (AnimatorState) ic.readSavable("anyState", null);
+        states = (Map<String, AnimatorState>) ic.readStringSavableMap("states", new HashMap<>());
+        stateMachines = (Map<String, AnimatorStateMachine>) ic.readStringSavableMap("stateMachines", new HashMap<>());
+        transitions = ic.readSavableArrayList("transitions", new ArrayList<>());
+    }
+
 }
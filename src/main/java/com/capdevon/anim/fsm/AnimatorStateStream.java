@@ -0,0 +1,183 @@
+package com.capdevon.anim.fsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Writes the payloads of many {@link AnimatorStateEncoder encoders} into a
+ * single packet per tick, within a byte budget. Each entry is written as
+ * {@code [varint id][varint length][payload]}, so the receiver can skip the
+ * characters it does not know. When the budget is exhausted the remaining
+ * characters are not committed: their changes are merged into their next
+ * payload, and the next tick starts with them, so every character is
+ * eventually sent.
+ *
+ * @author capdevon
+ */
+public class AnimatorStateStream {
+
+    //The ids of the characters and their encoders.
+    protected int[] ids = new int[8];
+    protected AnimatorStateEncoder[] encoders = new AnimatorStateEncoder[8];
+    protected int count = 0;
+    //The index of the first encoder written by the next tick.
+    protected int cursor = 0;
+    //The buffer each payload is encoded into before it is known to fit.
+    private final ByteBuffer scratch;
+    //The number of characters written by the last tick and left for the next one.
+    protected int lastWritten;
+    protected int lastDeferred;
+
+    /**
+     * Constructor.
+     * @param maxPayloadSize - The maximum size of the payload of a single character.
+     */
+    public AnimatorStateStream(int maxPayloadSize) {
+        scratch = ByteBuffer.allocate(maxPayloadSize);
+    }
+
+    /**
+     * Adds a character to the stream.
+     * @param id - The id identifying the character on the receiver.
+     * @param encoder
+     */
+    public void add(int id, AnimatorStateEncoder encoder) {
+        if (indexOf(id) >= 0) {
+            throw new IllegalArgumentException("Id already in use: " + id);
+        }
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            encoders = Arrays.copyOf(encoders, count * 2);
+        }
+        ids[count] = id;
+        encoders[count] = encoder;
+        count++;
+    }
+
+    /**
+     * Removes a character from the stream.
+     * @param id
+     */
+    public void remove(int id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            count--;
+            System.arraycopy(ids, index + 1, ids, index, count - index);
+            System.arraycopy(encoders, index + 1, encoders, index, count - index);
+            encoders[count] = null;
+            if (cursor > index) {
+                cursor--;
+            }
+        }
+    }
+
+    private int indexOf(int id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of characters written by the last tick.
+     * @return
+     */
+    public int getLastWritten() {
+        return lastWritten;
+    }
+
+    /**
+     * Returns the number of characters with changes that did not fit in the
+     * budget of the last tick.
+     * @return
+     */
+    public int getLastDeferred() {
+        return lastDeferred;
+    }
+
+    /**
+     * Writes the changes of the characters, starting with the ones deferred
+     * by the previous tick, until the budget is exhausted. A payload larger
+     * than the whole budget is written alone, so that it is not deferred
+     * forever.
+     *
+     * @param out
+     * @param budget - The maximum number of bytes to write.
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer out, int budget) {
+        int limit = Math.min(budget, out.remaining());
+        int bytes = 0;
+        int next = -1;
+        lastWritten = 0;
+        lastDeferred = 0;
+
+        for (int k = 0; k < count; k++) {
+            int index = (cursor + k) % count;
+            AnimatorStateEncoder encoder = encoders[index];
+
+            scratch.clear();
+            if (!encoder.encode(scratch)) {
+                continue;
+            }
+            int length = scratch.position();
+            int size = AnimatorStateCodec.varIntSize(ids[index]) + AnimatorStateCodec.varIntSize(length) + length;
+
+            boolean fits = (next < 0) && (bytes + size <= limit || (bytes == 0 && size <= out.remaining()));
+            if (!fits) {
+                if (next < 0) {
+                    next = index;
+                }
+                lastDeferred++;
+                continue;
+            }
+
+            AnimatorStateCodec.putVarInt(out, ids[index]);
+            AnimatorStateCodec.putVarInt(out, length);
+            scratch.flip();
+            out.put(scratch);
+            encoder.commit();
+            bytes += size;
+            lastWritten++;
+        }
+
+        cursor = (next >= 0) ? next : 0;
+        return bytes;
+    }
+
+    /**
+     * Reads a packet written by {@link #write(ByteBuffer, int)} and applies
+     * each payload to the decoder of its character.
+     *
+     * @param in
+     * @param decoders - Returns the decoder of a character id, or null to skip it.
+     * @return the number of payloads applied.
+     */
+    public static int read(ByteBuffer in, IntFunction<AnimatorStateDecoder> decoders) {
+        int applied = 0;
+        int limit = in.limit();
+        while (in.hasRemaining()) {
+            int id = AnimatorStateCodec.getVarInt(in);
+            int length = AnimatorStateCodec.getVarInt(in);
+            int end = in.position() + length;
+
+            AnimatorStateDecoder decoder = decoders.apply(id);
+            if (decoder != null) {
+                in.limit(end);
+                decoder.decode(in);
+                in.limit(limit);
+                applied++;
+            }
+            in.position(end);
+        }
+        return applied;
+    }
+
+}
@@ -1,15 +1,23 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+
 /**
  * Transitions define when and how the state machine switches from one state to another.
  * A transition happens when all its conditions are met.
  *
  * @author capdevon
  */
-public class AnimatorStateTransition {
+public class AnimatorStateTransition implements Savable {
 
     private AnimatorController animator;
 
@@ -20,16 +28,33 @@ public class AnimatorStateTransition {
     //Determines whether the duration of the transition is reported in a fixed duration in seconds or as a normalized time.
     protected boolean hasFixedDuration = true;
     //If AnimatorStateTransition.hasExitTime is true, exitTime represents the exact time at which the transition can take effect.
+    //An exit time lower than 1 is reached on every loop of the state, a greater one after the given number of loops.
     protected float exitTime = 0.75f;
     //When active the transition will have an exit time condition.
     protected boolean hasExitTime = false;
     //Mutes the transition. The transition will never occur.
     protected boolean mute = false;
+    //Which transitions can interrupt this transition while it is in progress.
+    protected TransitionInterruptionSource interruptionSource = TransitionInterruptionSource.None;
+    //If true, only the transitions of the source state with a higher priority can interrupt this transition.
+    protected boolean orderedInterruption = true;
+    //The transitions of a state are checked by descending priority, then in the order they were added.
+    protected int priority = 0;
     //The destination state of the transition.
     protected AnimatorState destinationState;
+    //The destination sub-state machine of the transition, entered through its default state.
+    protected AnimatorStateMachine destinationStateMachine;
+    //Is the transition destination the exit of the state machine.
+    protected boolean isExit = false;
     //AnimatorCondition conditions that need to be met for a transition to happen.
     protected List<AnimatorCondition> conditions = new ArrayList<>();
 
+    /**
+     * constructor for serialization only
+     */
+    protected AnimatorStateTransition() {
+    }
+
     /**
      * Constructor.
      * @param animator
@@ -38,12 +63,25 @@ public class AnimatorStateTransition {
         this.animator = animator;
     }
 
+    /**
+     * InternalCall. Attaches the transition to the given controller after it
+     * has been read.
+     * @param animator
+     */
+    protected void attach(AnimatorController animator) {
+        this.animator = animator;
+        for (int i = 0; i < conditions.size(); i++) {
+            conditions.get(i).attach(animator);
+        }
+    }
+
     /**
      * Utility function to remove a condition from the transition.
      * @param condition 
      */
     public void removeCondition(AnimatorCondition condition) {
         conditions.remove(condition);
+        animator.graphChanged();
     }
 
     /**
@@ -53,49 +91,132 @@ public class AnimatorStateTransition {
      * @param parameter 
      */
     public void addCondition(AnimatorConditionMode mode, float threshold, String parameter) {
-        if (animator.getParameter(parameter) == null) {
-            throw new IllegalArgumentException("AnimatorControllerParameter not found: " + parameter);
-        }
-
-        AnimatorCondition condition = new AnimatorCondition();
+        AnimatorCondition condition = new AnimatorCondition(animator);
         condition.mode = mode;
         condition.threshold = threshold;
         condition.parameter = parameter;
+        condition.bind();
         conditions.add(condition);
     }
 
+    /**
+     * InternalCall. Returns true if a condition of the transition reads the
+     * given parameter.
+     * @param parameter - The name of the parameter.
+     * @return
+     */
+    protected boolean usesParameter(String parameter) {
+        for (int i = 0; i < conditions.size(); i++) {
+            if (parameter.equals(conditions.get(i).parameter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Returns the state the transition leads to, resolving the
+     * destination sub-state machine to its default state.
+     * @return
+     */
+    protected AnimatorState resolveDestination() {
+        return (destinationStateMachine != null) ? destinationStateMachine.getDefaultState() : destinationState;
+    }
+
+    /**
+     * InternalCall. Returns a copy of this transition going straight to the
+     * given state, with the conditions of the next transition appended.
+     * @param next - The transition chained after this one, or null.
+     * @param destination
+     * @return
+     */
+    protected AnimatorStateTransition flatten(AnimatorStateTransition next, AnimatorState destination) {
+        AnimatorStateTransition transition = new AnimatorStateTransition(animator);
+        transition.offset = offset;
+        transition.duration = duration;
+        transition.hasFixedDuration = hasFixedDuration;
+        transition.exitTime = exitTime;
+        transition.hasExitTime = hasExitTime;
+        transition.interruptionSource = interruptionSource;
+        transition.orderedInterruption = orderedInterruption;
+        transition.priority = priority;
+        transition.destinationState = destination;
+        transition.conditions.addAll(conditions);
+        if (next != null) {
+            transition.conditions.addAll(next.conditions);
+        }
+        return transition;
+    }
+
     /**
      * InternalCall.
+     * @param animator - The controller running the transition.
      * @param sourceState
-     * @param layerName
+     * @param info - The runtime state of the layer.
      * @return
      */
-    protected boolean checkConditions(AnimatorState sourceState, String layerName) {
+    protected boolean checkConditions(AnimatorController animator, AnimatorState sourceState, AnimatorStateInfo info) {
 
         boolean doTransition = true;
 
-        for (AnimatorCondition condition : conditions) {
-            if (!condition.evalute(animator.parameters)) {
+        int i = 0;
+        for (; i < conditions.size(); i++) {
+            if (!conditions.get(i).evalute(animator, info)) {
                 doTransition = false;
                 break;
             }
         }
 
+        if (AnimatorMetrics.ENABLED) {
+            animator.metrics.transitionChecks++;
+            animator.metrics.conditionsEvaluated += Math.min(i + 1, conditions.size());
+        }
+
         if (doTransition && hasExitTime) {
-            double animTime = animator.animComposer.getTime(layerName);
-            double animDuration = animator.animComposer.getAction(sourceState.motion.name).getLength();
-            double animPercent = animTime / animDuration;
-            return animPercent > exitTime;
+            double time = info.normalizedTime;
+            if (exitTime < 1) {
+                // checked on every loop
+                time -= Math.floor(time);
+            }
+            return time > exitTime;
         }
 
         return doTransition;
     }
 
+    /**
+     * InternalCall. Resets the trigger parameters used by the conditions of
+     * this transition, once the transition has been taken. The triggers are
+     * consumed only in the layer running the transition.
+     * @param info - The runtime state of the layer.
+     */
+    protected void consumeTriggers(AnimatorStateInfo info) {
+        for (int i = 0; i < conditions.size(); i++) {
+            AnimatorCondition condition = conditions.get(i);
+            if (condition.parameterType == AnimatorControllerParameterType.Trigger) {
+                info.triggers.clear(condition.parameterId);
+            }
+        }
+    }
+
+    public AnimatorState getDestinationState() {
+        return destinationState;
+    }
+
+    public AnimatorStateMachine getDestinationStateMachine() {
+        return destinationStateMachine;
+    }
+
+    public boolean isExit() {
+        return isExit;
+    }
+
     public float getOffset() {
         return offset;
     }
 
     public void setOffset(float offset) {
+        animator.graphChanged();
         this.offset = offset;
     }
 
@@ -104,6 +225,7 @@ public class AnimatorStateTransition {
     }
 
     public void setDuration(float duration) {
+        animator.graphChanged();
         this.duration = duration;
     }
 
@@ -112,6 +234,7 @@ public class AnimatorStateTransition {
     }
 
     public void setExitTime(float exitTime) {
+        animator.graphChanged();
         this.exitTime = exitTime;
     }
 
@@ -120,15 +243,87 @@ public class AnimatorStateTransition {
     }
 
     public void setHasExitTime(boolean hasExitTime) {
+        animator.graphChanged();
         this.hasExitTime = hasExitTime;
     }
 
+    public TransitionInterruptionSource getInterruptionSource() {
+        return interruptionSource;
+    }
+
+    public void setInterruptionSource(TransitionInterruptionSource interruptionSource) {
+        animator.graphChanged();
+        this.interruptionSource = interruptionSource;
+    }
+
+    public boolean isOrderedInterruption() {
+        return orderedInterruption;
+    }
+
+    public void setOrderedInterruption(boolean orderedInterruption) {
+        animator.graphChanged();
+        this.orderedInterruption = orderedInterruption;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of the transition. The transitions of a state are
+     * checked by descending priority; transitions with the same priority are
+     * checked in the order they were added.
+     * @param priority
+     */
+    public void setPriority(int priority) {
+        animator.graphChanged();
+        this.priority = priority;
+    }
+
     public boolean isMute() {
         return mute;
     }
 
     public void setMute(boolean mute) {
+        animator.graphChanged();
         this.mute = mute;
     }
 
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(offset, "offset", 0f);
+        oc.write(duration, "duration", 0.25f);
+        oc.write(hasFixedDuration, "hasFixedDuration", true);
+        oc.write(exitTime, "exitTime", 0.75f);
+        oc.write(hasExitTime, "hasExitTime", false);
+        oc.write(mute, "mute", false);
+        oc.write(interruptionSource, "interruptionSource", TransitionInterruptionSource.None);
+        oc.write(orderedInterruption, "orderedInterruption", true);
+        oc.write(priority, "priority", 0);
+        oc.write(isExit, "isExit", false);
+        oc.write(destinationState, "destinationState", null);
+        oc.write(destinationStateMachine, "destinationStateMachine", null);
+        oc.writeSavableArrayList(new ArrayList<>(conditions), "conditions", null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        offset = ic.readFloat("offset", 0f);
+        duration = ic.readFloat("duration", 0.25f);
+        hasFixedDuration = ic.readBoolean("hasFixedDuration", true);
+        exitTime = ic.readFloat("exitTime", 0.75f);
+        hasExitTime = ic.readBoolean("hasExitTime", false);
+        mute = ic.readBoolean("mute", false);
+        interruptionSource = ic.readEnum("interruptionSource", TransitionInterruptionSource.class, TransitionInterruptionSource.None);
+        orderedInterruption = ic.readBoolean("orderedInterruption", true);
+        priority = ic.readInt("priority", 0);
+        isExit = ic.readBoolean("isExit", false);
+        destinationState = (AnimatorState) ic.readSavable("destinationState", null);
+        destinationStateMachine = (AnimatorStateMachine) ic.readSavable("destinationStateMachine", null);
+        conditions = ic.readSavableArrayList("conditions", new ArrayList<>());
+    }
+
 }
@@ -1,8 +1,14 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
 import com.jme3.math.Vector2f;
 
 /**
@@ -16,9 +22,9 @@ public class BlendTree extends Motion {
     public enum BlendTreeType {
         Simple1D,
         SimpleDirectional2D,
-//        FreeformDirectional2D,
-//        FreeformCartesian2D,
-//        Direct
+        FreeformDirectional2D,
+        FreeformCartesian2D,
+        Direct
     }
 
     //Parameter that is used to compute the blending weight of the childs in 1D blend trees or on the X axis of a 2D blend tree.
@@ -33,6 +39,25 @@ public class BlendTree extends Motion {
     protected float minThreshold = 0f;
     //The list of the blend tree child motions.
     protected List<ChildMotion> motions = new ArrayList<>();
+    //The ids of the blend parameters in the controller parameter table, resolved when the tree is added to a state machine.
+    protected int blendParameterId = -1;
+    protected int blendParameterYId = -1;
+    //True when the parameter ids of the tree and its childs are resolved.
+    protected boolean bound = false;
+    //The child indices and thresholds sorted by threshold, rebuilt when a child or a threshold changes.
+    private int[] sortedIndices = new int[0];
+    private float[] sortedThresholds = new float[0];
+    private boolean sortDirty = true;
+    //Incremented each time the childs are sorted or triangulated, so the BlendTreeInfos drop their lookups.
+    protected int layoutVersion = 0;
+    //The triangulation of the child positions of a freeform 2D blend tree, built when the tree is added to a state machine.
+    protected FreeformBlendSpace freeformSpace;
+    //The animation clips of the tree and of its nested trees, flattened when the tree is added to a state machine.
+    //Only used when the tree has nested BlendTree childs.
+    protected String[] leafClips;
+    protected float[] leafTimeScales;
+    //The number of animation clips under this tree, including the nested trees.
+    protected int leafCount;
     
     /**
      * Constructor.
@@ -42,7 +67,7 @@ public class BlendTree extends Motion {
     }
 
     /**
-     * Create blend tree with the minimum and maximum threshold for the LinearBlendSpace.
+     * Create blend tree with the minimum and maximum threshold.
      * 
      * @param minThreshold
      * @param maxThreshold
@@ -58,7 +83,10 @@ public class BlendTree extends Motion {
      * @param index - The index of the blend tree to remove.
      */
     public void removeChild(int index) {
-        motions.remove(index);
+        ChildMotion motion = motions.remove(index);
+        motion.parent = null;
+        bound = false;
+        sortDirty = true;
     }
 
     /**
@@ -83,12 +111,54 @@ public class BlendTree extends Motion {
         return addChild(animName, Vector2f.ZERO.clone(), threshold);
     }
 
+    /**
+     * Utility function to add a child motion to a blend trees.
+     * 
+     * @param animName             - The motion to add as child.
+     * @param directBlendParameter - The parameter that drives the weight of the child. When using Direct blend trees.
+     * @return 
+     */
+    public ChildMotion addChild(String animName, String directBlendParameter) {
+        ChildMotion motion = addChild(animName, Vector2f.ZERO.clone(), 0f);
+        motion.directBlendParameter = directBlendParameter;
+        bound = false;
+        return motion;
+    }
+
+    /**
+     * Utility function to add a nested blend tree to a blend trees.
+     * 
+     * @param blendTree - The blend tree to add as child.
+     * @param threshold - The threshold of the child. When using 1D blend trees.
+     * @return 
+     */
+    public ChildMotion addChild(BlendTree blendTree, float threshold) {
+        ChildMotion motion = addChild((String) null, Vector2f.ZERO.clone(), threshold);
+        motion.motion = blendTree;
+        return motion;
+    }
+
+    /**
+     * Utility function to add a nested blend tree to a blend trees.
+     * 
+     * @param blendTree - The blend tree to add as child.
+     * @param position  - The position of the child. When using 2D blend trees.
+     * @return 
+     */
+    public ChildMotion addChild(BlendTree blendTree, Vector2f position) {
+        ChildMotion motion = addChild((String) null, position, 0f);
+        motion.motion = blendTree;
+        return motion;
+    }
+
     private ChildMotion addChild(String animName, Vector2f position, float threshold) {
         ChildMotion motion = new ChildMotion();
         motion.animName = animName;
         motion.position = position;
         motion.threshold = threshold;
+        motion.parent = this;
         motions.add(motion);
+        sortDirty = true;
         return motion;
     }
 
@@ -115,6 +185,8 @@ public class BlendTree extends Motion {
 
     public void setBlendParameter(String blendParameter) {
         this.blendParameter = blendParameter;
+        this.blendParameterId = -1;
+        this.bound = false;
     }
 
     public String getBlendParameterY() {
@@ -123,6 +195,8 @@ public class BlendTree extends Motion {
 
     public void setBlendParameterY(String blendParameterY) {
         this.blendParameterY = blendParameterY;
+        this.blendParameterYId = -1;
+        this.bound = false;
     }
 
     public float getMaxThreshold() {
@@ -134,99 +208,467 @@ public class BlendTree extends Motion {
     }
     
     /**
-     * InternalCall.
-     * @param blendPos
+     * InternalCall. Returns the child closest to the blend position.
+     * @param x
+     * @param y
      * @return
      */
-    protected ChildMotion getBlendMotion(Vector2f blendPos) {
-        ChildMotion closestChild = null;
+    protected ChildMotion getBlendMotion(float x, float y) {
+        int index = getClosestIndex(x, y);
+        return (index < 0) ? null : motions.get(index);
+    }
+
+    private int getClosestIndex(float x, float y) {
+        int closestIndex = -1;
         float minDistance = Float.MAX_VALUE;
 
-        for (ChildMotion childMotion: motions) {
-            float d = childMotion.position.distanceSquared(blendPos);
+        for (int i = 0; i < motions.size(); i++) {
+            ChildMotion childMotion = motions.get(i);
+            float dx = childMotion.position.x - x;
+            float dy = childMotion.position.y - y;
+            float d = dx * dx + dy * dy;
             if (d < minDistance) {
                 minDistance = d;
-                closestChild = childMotion;
+                closestIndex = i;
             }
         }
 
-        return closestChild;
+        return closestIndex;
     }
 
     /**
-     * InternalCall.
+     * InternalCall. Computes the weights of the childs into the weights buffer
+     * of the given BlendTreeInfo and returns the child with the largest weight.
+     * The two childs bracketing the blend position are found with a binary
+     * search over the sorted thresholds, or reused from the previous call when
+     * the blend position is still between them.
+     * @param info
      * @param blendPos
      * @return
      */
-    protected ChildMotion getBlendMotion(float blendPos) {
+    protected ChildMotion getBlendMotion(BlendTreeInfo info, float blendPos) {
+        validate(info);
 
-        int point_lower = -1;
-        float pos_lower = 0.0f;
-        int point_higher = -1;
-        float pos_higher = 0.0f;
-        float[] weights = new float[motions.size()];
+        int count = sortedThresholds.length;
+        if (count == 0) {
+            return null;
+        }
 
-        for (int i = 0; i < motions.size(); i++) {
-            float pos = motions.get(i).threshold;
-
-            if (pos <= blendPos) {
-                if (point_lower == -1) {
-                    point_lower = i;
-                    pos_lower = pos;
-                } else if ((blendPos - pos) < (blendPos - pos_lower)) {
-                    point_lower = i;
-                    pos_lower = pos;
-                }
-            } else {
-                if (point_higher == -1) {
-                    point_higher = i;
-                    pos_higher = pos;
-                } else if ((pos - blendPos) < (pos_higher - blendPos)) {
-                    point_higher = i;
-                    pos_higher = pos;
-                }
-            }
+        int lower = info.lastLower;
+        if (!isBracket(lower, blendPos)) {
+            lower = findLower(blendPos);
+            info.lastLower = lower;
         }
+        int higher = lower + 1;
 
-        if (point_lower == -1 && point_higher != -1) {
+        // reset the weights set by the previous call
+        float[] weights = info.weights;
+        if (info.lastWeightLower >= 0) {
+            weights[info.lastWeightLower] = 0f;
+        }
+        if (info.lastWeightHigher >= 0) {
+            weights[info.lastWeightHigher] = 0f;
+        }
+
+        if (lower == -1) {
             // we are on the left side, no other point to the left
             // we just play the next point.
-            weights[point_higher] = 1.0f;
+            return setWeights(info, -1, 0f, sortedIndices[higher], 1f);
 
-        } else if (point_higher == -1) {
+        } else if (higher == count) {
             // we are on the right side, no other point to the right
             // we just play the previous point
-            weights[point_lower] = 1.0f;
+            return setWeights(info, sortedIndices[lower], 1f, -1, 0f);
 
         } else {
             // we are between two points.
             // figure out weights, then blend the animations
-            float distance_between_points = pos_higher - pos_lower;
-            float current_pos_inbetween = blendPos - pos_lower;
-            float blend_percentage = current_pos_inbetween / distance_between_points;
+            float pos_lower = sortedThresholds[lower];
+            float pos_higher = sortedThresholds[higher];
+            float blend_percentage = (blendPos - pos_lower) / (pos_higher - pos_lower);
+
+            return setWeights(info, sortedIndices[lower], 1.0f - blend_percentage, sortedIndices[higher], blend_percentage);
+        }
+    }
+
+    private ChildMotion setWeights(BlendTreeInfo info, int indexLower, float weightLower, int indexHigher, float weightHigher) {
+        info.lastWeightLower = indexLower;
+        info.lastWeightHigher = indexHigher;
+        if (indexLower >= 0) {
+            info.weights[indexLower] = weightLower;
+        }
+        if (indexHigher >= 0) {
+            info.weights[indexHigher] = weightHigher;
+        }
+        return motions.get(weightHigher > weightLower ? indexHigher : indexLower);
+    }
+
+    /**
+     * Sorts the childs if needed, and resets the BlendTreeInfo if its
+     * lookups refer to older childs, thresholds or triangulation.
+     */
+    private void validate(BlendTreeInfo info) {
+        if (sortDirty) {
+            sortChildren();
+        }
+        if (info.layoutVersion != layoutVersion) {
+            info.reset(this);
+        }
+    }
+
+    /**
+     * Returns true if the blend position lies between the sorted childs
+     * {@code lower} and {@code lower + 1}.
+     */
+    private boolean isBracket(int lower, float blendPos) {
+        int count = sortedThresholds.length;
+        if (lower < -1 || lower >= count) {
+            return false;
+        }
+        return (lower == -1 || sortedThresholds[lower] <= blendPos)
+            && (lower + 1 == count || blendPos < sortedThresholds[lower + 1]);
+    }
+
+    /**
+     * Binary search of the last sorted child whose threshold is lower than or
+     * equal to the blend position, or -1 if there is none.
+     */
+    private int findLower(float blendPos) {
+        int low = 0;
+        int high = sortedThresholds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sortedThresholds[mid] <= blendPos) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Sorts the childs by threshold. Childs with the same threshold keep
+     * their insertion order.
+     */
+    private void sortChildren() {
+        int count = motions.size();
+        int[] indices = new int[count];
+        float[] thresholds = new float[count];
+
+        // insertion sort, stable
+        for (int i = 0; i < count; i++) {
+            float threshold = motions.get(i).threshold;
+            int j = i - 1;
+            while (j >= 0 && thresholds[j] > threshold) {
+                thresholds[j + 1] = thresholds[j];
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            thresholds[j + 1] = threshold;
+            indices[j + 1] = i;
+        }
+
+        sortedIndices = indices;
+        sortedThresholds = thresholds;
+        layoutVersion++;
+        sortDirty = false;
+    }
+
+    /**
+     * InternalCall. Builds the triangulation of the child positions used by
+     * the freeform 2D blend types.
+     */
+    protected void buildFreeformSpace() {
+        Vector2f[] positions = new Vector2f[motions.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = motions.get(i).position;
+        }
+        freeformSpace = new FreeformBlendSpace(positions);
+        layoutVersion++;
+    }
+
+    /**
+     * InternalCall. Computes the weights of the childs of a freeform 2D blend
+     * tree into the weights buffer of the given BlendTreeInfo.
+     * @param info
+     * @param x
+     * @param y
+     */
+    protected void computeFreeformWeights(BlendTreeInfo info, float x, float y) {
+        validate(info);
+        if (blendType == BlendTreeType.FreeformDirectional2D) {
+            freeformSpace.computeDirectionalWeights(x, y, info.weights);
+        } else {
+            freeformSpace.computeWeights(x, y, info.weights, info.lookup);
+        }
+    }
+
+    /**
+     * InternalCall. Returns the speed of the blend computed by the last
+     * evaluation with the given BlendTreeInfo: the child time scales weighted
+     * by the child weights. Only the childs that can have a weight are read,
+     * the two bracketing the blend position of a 1D tree, or the corners of
+     * the triangle of a freeform cartesian tree.
+     * @param info
+     * @return
+     */
+    protected float getBlendSpeed(BlendTreeInfo info) {
+        float[] weights = info.weights;
+        float speed = 0;
+        if (blendType == BlendTreeType.Simple1D) {
+            speed += getChildSpeed(weights, info.lastWeightLower);
+            speed += getChildSpeed(weights, info.lastWeightHigher);
+        } else if (blendType == BlendTreeType.FreeformCartesian2D) {
+            int[] indices = info.lookup.lastIndices;
+            for (int i = 0; i < indices.length; i++) {
+                speed += getChildSpeed(weights, indices[i]);
+            }
+        } else {
+            // all the childs of a directional tree can have a weight
+            for (int i = 0; i < weights.length; i++) {
+                speed += getChildSpeed(weights, i);
+            }
+        }
+        return speed;
+    }
 
-            float blend_lower = 1.0f - blend_percentage;
-            float blend_higher = blend_percentage;
+    private float getChildSpeed(float[] weights, int index) {
+        return (index >= 0) ? weights[index] * motions.get(index).timeScale : 0;
+    }
 
-            weights[point_lower] = blend_lower;
-            weights[point_higher] = blend_higher;
+    /**
+     * InternalCall. Reads the weight of each child of a Direct blend tree from
+     * its own float parameter into the weights buffer of the given
+     * BlendTreeInfo. Negative values count as zero.
+     * @param info
+     * @param floatValues - The float values of the controller parameter table.
+     * @return the speed of the blend, the average of the child time scales weighted by the child weights.
+     */
+    protected float computeDirectWeights(BlendTreeInfo info, float[] floatValues) {
+        validate(info);
+        float[] weights = info.weights;
+        float totalWeight = 0;
+        float speed = 0;
+        for (int i = 0; i < weights.length; i++) {
+            ChildMotion child = motions.get(i);
+            float weight = Math.max(0, floatValues[child.directBlendParameterId]);
+            weights[i] = weight;
+            totalWeight += weight;
+            speed += weight * child.timeScale;
         }
+        return (totalWeight > 0) ? speed / totalWeight : 1f;
+    }
 
-        return motions.get(getIndexOfMax(weights));
+    /**
+     * Returns true if any child is a nested BlendTree.
+     * @return
+     */
+    public boolean hasNestedChilds() {
+        for (int i = 0; i < motions.size(); i++) {
+            if (motions.get(i).motion instanceof BlendTree) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    protected int getIndexOfMax(float[] array) {
-        if (array == null || array.length == 0)
-            return -1; // null or empty
+    /**
+     * InternalCall. Flattens the nested BlendTrees into a single list of
+     * animation clips, and builds the triangulations of the freeform trees.
+     * At runtime the weight of each clip is the product of the weights
+     * along its path, so the whole hierarchy is played by a single action.
+     */
+    protected void compile() {
+        List<String> clips = new ArrayList<>();
+        List<Float> timeScales = new ArrayList<>();
+        collectLeaves(clips, timeScales, 1f);
+
+        leafClips = clips.toArray(new String[0]);
+        sortDirty = true;
+        leafTimeScales = new float[leafClips.length];
+        for (int i = 0; i < leafTimeScales.length; i++) {
+            leafTimeScales[i] = timeScales.get(i);
+        }
+    }
 
-        int max = 0;
-        for (int i = 1; i < array.length; i++) {
-            if (array[i] > array[max])
-                max = i;
+    private void collectLeaves(List<String> clips, List<Float> timeScales, float timeScale) {
+        if (blendType == BlendTreeType.FreeformDirectional2D || blendType == BlendTreeType.FreeformCartesian2D) {
+            buildFreeformSpace();
         }
 
-        // position of the first largest found
-        return max;
+        // marks the tree as being visited, to detect cycles
+        leafCount = -1;
+        int start = clips.size();
+        for (int i = 0; i < motions.size(); i++) {
+            ChildMotion child = motions.get(i);
+            if (child.motion instanceof BlendTree) {
+                BlendTree nested = (BlendTree) child.motion;
+                if (nested.leafCount < 0) {
+                    throw new IllegalArgumentException("BlendTree cannot contain itself");
+                }
+                nested.collectLeaves(clips, timeScales, timeScale * child.timeScale);
+            } else {
+                clips.add(child.animName);
+                timeScales.add(timeScale * child.timeScale);
+            }
+        }
+        leafCount = clips.size() - start;
+    }
+
+    /**
+     * InternalCall. Computes the weights of the flattened animation clips into
+     * the leaf weights buffer of the BlendTreeInfo of the tree in the layer.
+     * @param stateInfo   - The runtime state of the layer, holding the BlendTreeInfos of the nested trees.
+     * @param floatValues - The float values of the controller parameter table.
+     * @return the speed of the blend, the average of the clip time scales weighted by the clip weights.
+     */
+    protected float computeLeafWeights(AnimatorStateInfo stateInfo, float[] floatValues) {
+        BlendTreeInfo info = stateInfo.getBlendTreeInfo(this);
+        validate(info);
+        float[] leafWeights = info.leafWeights;
+        fillLeafWeights(stateInfo, floatValues, 1f, leafWeights, 0);
+
+        float totalWeight = 0;
+        float speed = 0;
+        for (int i = 0; i < leafWeights.length; i++) {
+            totalWeight += leafWeights[i];
+            speed += leafWeights[i] * leafTimeScales[i];
+        }
+        return (totalWeight > 0) ? speed / totalWeight : 1f;
+    }
+
+    private int fillLeafWeights(AnimatorStateInfo stateInfo, float[] floatValues, float scale, float[] out, int offset) {
+        if (scale <= 0) {
+            // the whole subtree is not playing
+            Arrays.fill(out, offset, offset + leafCount, 0f);
+            return offset + leafCount;
+        }
+
+        BlendTreeInfo info = stateInfo.getBlendTreeInfo(this);
+        computeWeights(info, floatValues);
+
+        float[] weights = info.weights;
+        for (int i = 0; i < weights.length; i++) {
+            ChildMotion child = motions.get(i);
+            float weight = scale * weights[i];
+            if (child.motion instanceof BlendTree) {
+                offset = ((BlendTree) child.motion).fillLeafWeights(stateInfo, floatValues, weight, out, offset);
+            } else {
+                out[offset++] = weight;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Computes the weights of the childs into the weights buffer of the given
+     * BlendTreeInfo, whatever the blend type.
+     */
+    private void computeWeights(BlendTreeInfo info, float[] floatValues) {
+        switch (blendType) {
+            case Simple1D:
+                getBlendMotion(info, floatValues[blendParameterId]);
+                break;
+            case SimpleDirectional2D:
+                validate(info);
+                Arrays.fill(info.weights, 0f);
+                int index = getClosestIndex(floatValues[blendParameterId], floatValues[blendParameterYId]);
+                if (index >= 0) {
+                    info.weights[index] = 1f;
+                }
+                break;
+            case FreeformDirectional2D:
+            case FreeformCartesian2D:
+                computeFreeformWeights(info, floatValues[blendParameterId], floatValues[blendParameterYId]);
+                break;
+            case Direct:
+                computeDirectWeights(info, floatValues);
+                break;
+        }
+    }
+
+    /**
+     * InternalCall. Invalidates the sorted thresholds.
+     */
+    protected void setSortDirty() {
+        sortDirty = true;
+    }
+
+    /**
+     * InternalCall. Returns true if the tree, one of its childs or one of its
+     * nested trees reads the given parameter.
+     * @param parameter - The name of the parameter.
+     * @return
+     */
+    protected boolean usesParameter(String parameter) {
+        if (parameter.equals(blendParameter) || parameter.equals(blendParameterY)) {
+            return true;
+        }
+        for (int i = 0; i < motions.size(); i++) {
+            ChildMotion child = motions.get(i);
+            if (parameter.equals(child.directBlendParameter)
+                    || (child.motion instanceof BlendTree && ((BlendTree) child.motion).usesParameter(parameter))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * InternalCall. Resolves the blend parameters to their slots in the
+     * controller parameter table.
+     * @param animator
+     */
+    protected void bind(AnimatorController animator) {
+        blendParameterId = (blendParameter != null) ? animator.getParameterId(blendParameter) : -1;
+        blendParameterYId = (blendParameterY != null) ? animator.getParameterId(blendParameterY) : -1;
+        if (blendType == BlendTreeType.Direct) {
+            for (int i = 0; i < motions.size(); i++) {
+                ChildMotion child = motions.get(i);
+                if (child.directBlendParameter == null) {
+                    throw new IllegalArgumentException("Direct BlendTree child has no blend parameter: " + child.animName);
+                }
+                child.directBlendParameterId = animator.getParameterId(child.directBlendParameter);
+            }
+        }
+        for (int i = 0; i < motions.size(); i++) {
+            Motion motion = motions.get(i).motion;
+            if (motion instanceof BlendTree) {
+                ((BlendTree) motion).bind(animator);
+            }
+        }
+        bound = true;
     }
     
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        super.write(ex);
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(blendParameter, "blendParameter", null);
+        oc.write(blendParameterY, "blendParameterY", null);
+        oc.write(blendType, "blendType", BlendTreeType.Simple1D);
+        oc.write(maxThreshold, "maxThreshold", 1f);
+        oc.write(minThreshold, "minThreshold", 0f);
+        oc.writeSavableArrayList(new ArrayList<>(motions), "motions", null);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void read(JmeImporter im) throws IOException {
+        super.read(im);
+        InputCapsule ic = im.getCapsule(this);
+        blendParameter = ic.readString("blendParameter", null);
+        blendParameterY = ic.readString("blendParameterY", null);
+        blendType = ic.readEnum("blendType", BlendTreeType.class, BlendTreeType.Simple1D);
+        maxThreshold = ic.readFloat("maxThreshold", 1f);
+        minThreshold = ic.readFloat("minThreshold", 0f);
+        motions = ic.readSavableArrayList("motions", new ArrayList<>());
+        for (ChildMotion motion : motions) {
+            motion.parent = this;
+        }
+        sortDirty = true;
+        bound = false;
+    }
+
 }
@@ -0,0 +1,69 @@
+package com.capdevon.anim.fsm;
+
+import java.util.Arrays;
+
+/**
+ * The runtime state of a BlendTree in a layer of an AnimatorController: the
+ * weights of its childs and the lookups reused by the next evaluation. The
+ * BlendTree can be shared by many controllers, each layer holding its own
+ * BlendTreeInfo per tree.
+ *
+ * @author capdevon
+ */
+public class BlendTreeInfo {
+
+    //The weight of each child.
+    protected float[] weights = new float[0];
+    //The weight of each flattened animation clip, only used when the tree has nested BlendTree childs.
+    protected float[] leafWeights;
+    //The sorted index of the lower child bracketing the last blend position.
+    protected int lastLower = -2;
+    //The indices of the weights set by the last evaluation.
+    protected int lastWeightLower = -1;
+    protected int lastWeightHigher = -1;
+    //The result of the last lookup in the triangulation of a freeform 2D blend tree.
+    protected final FreeformBlendSpace.Lookup lookup = new FreeformBlendSpace.Lookup();
+    //The version of the layout of the tree the lookups refer to.
+    protected int layoutVersion = -1;
+
+    /**
+     * Constructor.
+     * @param blendTree
+     */
+    protected BlendTreeInfo(BlendTree blendTree) {
+        reset(blendTree);
+    }
+
+    /**
+     * InternalCall. Clears the weights and the lookups, and resizes the
+     * buffers to the childs of the tree.
+     * @param blendTree
+     */
+    protected void reset(BlendTree blendTree) {
+        int count = blendTree.motions.size();
+        if (weights.length != count) {
+            weights = new float[count];
+        } else {
+            Arrays.fill(weights, 0f);
+        }
+        if (blendTree.leafClips == null) {
+            leafWeights = null;
+        } else if (leafWeights == null || leafWeights.length != blendTree.leafClips.length) {
+            leafWeights = new float[blendTree.leafClips.length];
+        }
+        lastLower = -2;
+        lastWeightLower = -1;
+        lastWeightHigher = -1;
+        lookup.reset();
+        layoutVersion = blendTree.layoutVersion;
+    }
+
+    /**
+     * Returns the weight of each child computed by the last evaluation.
+     * @return
+     */
+    public float[] getWeights() {
+        return weights;
+    }
+
+}
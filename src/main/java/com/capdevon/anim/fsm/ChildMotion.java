@@ -1,5 +1,12 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
+
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 import com.jme3.math.Vector2f;
 
 /**
@@ -7,10 +14,12 @@ import com.jme3.math.Vector2f;
  *
  * @author capdevon
  */
-public class ChildMotion {
+public class ChildMotion implements Savable {
 
     //The motion itself.
     protected String animName;
+    //The nested BlendTree, or null if the child is an animation clip.
+    protected Motion motion;
     //The position of the child. Used in 2D blend trees.
     protected Vector2f position;
     //The threshold of the child. Used in 1D blend trees.
@@ -19,11 +28,28 @@ public class ChildMotion {
     protected float timeScale = 1f;
     //Normalized time offset of the child.
     protected float cycleOffset = 0;
+    //The parameter used by the child when used in a BlendTree of type Direct.
+    protected String directBlendParameter;
+    //The id of the direct blend parameter in the controller parameter table.
+    protected int directBlendParameterId = -1;
+    //The blend tree that owns the child.
+    protected BlendTree parent;
+
+    /**
+     * Constructor.
+     */
+    public ChildMotion() {
+        //default empty.
+    }
 
     public String getAnimName() {
         return animName;
     }
 
+    public Motion getMotion() {
+        return motion;
+    }
+
     public float getTimeScale() {
         return timeScale;
     }
@@ -38,6 +64,9 @@ public class ChildMotion {
 
     public void setThreshold(float threshold) {
         this.threshold = threshold;
+        if (parent != null) {
+            parent.setSortDirty();
+        }
     }
 
     public Vector2f getPosition() {
@@ -48,6 +77,18 @@ public class ChildMotion {
         this.position = position;
     }
 
+    public String getDirectBlendParameter() {
+        return directBlendParameter;
+    }
+
+    public void setDirectBlendParameter(String directBlendParameter) {
+        this.directBlendParameter = directBlendParameter;
+        this.directBlendParameterId = -1;
+        if (parent != null) {
+            parent.bound = false;
+        }
+    }
+
     public float getCycleOffset() {
         return cycleOffset;
     }
@@ -56,4 +97,28 @@ public class ChildMotion {
         this.cycleOffset = cycleOffset;
     }
 
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(animName, "animName", null);
+        oc.write(motion, "motion", null);
+        oc.write(position, "position", null);
+        oc.write(threshold, "threshold", 0f);
+        oc.write(timeScale, "timeScale", 1f);
+        oc.write(cycleOffset, "cycleOffset", 0f);
+        oc.write(directBlendParameter, "directBlendParameter", null);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        animName = ic.readString("animName", null);
+        motion = (Motion) ic.readSavable("motion", null);
+        position = (Vector2f) ic.readSavable("position", null);
+        threshold = ic.readFloat("threshold", 0f);
+        timeScale = ic.readFloat("timeScale", 1f);
+        cycleOffset = ic.readFloat("cycleOffset", 0f);
+        directBlendParameter = ic.readString("directBlendParameter", null);
+    }
+
 }
@@ -0,0 +1,527 @@
+package com.capdevon.anim.fsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.math.Vector2f;
+
+/**
+ * Computes the child weights of a freeform 2D blend tree. The positions of the
+ * childs are triangulated (Delaunay) once, when the blend space is created.
+ * At runtime the triangle containing the blend position is found through a
+ * uniform grid and the childs at its corners are weighted with the
+ * barycentric coordinates, so at most three childs have a weight greater than
+ * zero. Blend positions outside the triangulation are projected onto the
+ * closest hull edge.
+ * <p>
+ * The directional blend type uses gradient band interpolation in polar space
+ * instead: the weights depend on the magnitude and on the angle of the blend
+ * position, so childs in the same direction at different speeds blend by
+ * magnitude, and childs in different directions blend by angle.
+ * </p>
+ *
+ * @author capdevon
+ */
+public class FreeformBlendSpace {
+
+    private static final float EPSILON = 1e-6f;
+    //The influence of the angle relative to the magnitude in the directional weights.
+    private static final float ANGLE_INFLUENCE = 2f;
+
+    //The positions of the points.
+    private final float[] px;
+    private final float[] py;
+    //The triangles, three point indices per triangle.
+    private int[] triangles;
+    //The edges of the triangulation hull, two point indices per edge.
+    private int[] hullEdges;
+
+    //The magnitudes of the points.
+    private float[] magnitudes;
+    //For each pair of points (i * count + j), the terms of the directional weights.
+    private float[] pairInvMean;
+    private float[] pairX;
+    private float[] pairY;
+    private float[] pairInvLengthSquared;
+
+    //The uniform grid over the bounds of the points.
+    private float minX;
+    private float minY;
+    private float cellWidth;
+    private float cellHeight;
+    private int gridSize;
+    //For each cell, the range of cellTriangles listing the triangles that overlap the cell.
+    private int[] cellStart;
+    private int[] cellTriangles;
+
+    /**
+     * The result of the last lookup in a blend space. The blend space can be
+     * shared, each user keeps its own Lookup.
+     */
+    public static class Lookup {
+
+        //The triangle found by the last lookup.
+        protected int lastTriangle = -1;
+        //The indices of the weights set by the last lookup.
+        protected final int[] lastIndices = { -1, -1, -1 };
+
+        /**
+         * Forgets the last lookup, when the weights buffer has been cleared.
+         */
+        public void reset() {
+            lastTriangle = -1;
+            lastIndices[0] = lastIndices[1] = lastIndices[2] = -1;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param positions - The positions of the childs.
+     * @throws IllegalArgumentException if two childs share the same position.
+     */
+    public FreeformBlendSpace(Vector2f[] positions) {
+        int count = positions.length;
+        px = new float[count];
+        py = new float[count];
+        for (int i = 0; i < count; i++) {
+            px[i] = positions[i].x;
+            py[i] = positions[i].y;
+            for (int j = 0; j < i; j++) {
+                if (px[j] == px[i] && py[j] == py[i]) {
+                    String msg = String.format("Childs %d and %d have the same position %s", j, i, positions[i]);
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+        }
+
+        triangulate();
+        buildHull();
+        buildGrid();
+        buildDirectionalPairs();
+    }
+
+    public int getTriangleCount() {
+        return triangles.length / 3;
+    }
+
+    /**
+     * Computes the weight of each child for the given blend position. Only the
+     * weights set by the previous call with the same lookup are cleared, the
+     * buffer must not be modified elsewhere.
+     *
+     * @param x       - The blend position on the X axis.
+     * @param y       - The blend position on the Y axis.
+     * @param weights - The buffer receiving the weights, one per child.
+     * @param lookup  - The result of the previous call, updated by this one.
+     */
+    public void computeWeights(float x, float y, float[] weights, Lookup lookup) {
+        int[] lastIndices = lookup.lastIndices;
+        for (int i = 0; i < 3; i++) {
+            if (lastIndices[i] >= 0) {
+                weights[lastIndices[i]] = 0f;
+                lastIndices[i] = -1;
+            }
+        }
+
+        if (px.length == 0) {
+            return;
+        }
+        if (px.length == 1) {
+            setWeight(weights, lookup, 0, 0, 1f);
+            return;
+        }
+
+        int last = lookup.lastTriangle;
+        int tri = (last >= 0 && setBarycentric(last, x, y, weights, lookup)) ? last : findTriangle(x, y, weights, lookup);
+        if (tri >= 0) {
+            lookup.lastTriangle = tri;
+            return;
+        }
+
+        // outside of the triangulation, project on the closest hull edge
+        int bestEdge = 0;
+        float bestT = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int e = 0; e < hullEdges.length; e += 2) {
+            int a = hullEdges[e];
+            int b = hullEdges[e + 1];
+            float ex = px[b] - px[a];
+            float ey = py[b] - py[a];
+            float lengthSquared = ex * ex + ey * ey;
+            float t = (lengthSquared > 0) ? ((x - px[a]) * ex + (y - py[a]) * ey) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            float dx = px[a] + t * ex - x;
+            float dy = py[a] + t * ey - y;
+            float d = dx * dx + dy * dy;
+            if (d < bestDistance) {
+                bestDistance = d;
+                bestEdge = e;
+                bestT = t;
+            }
+        }
+        setWeight(weights, lookup, 0, hullEdges[bestEdge], 1f - bestT);
+        setWeight(weights, lookup, 1, hullEdges[bestEdge + 1], bestT);
+    }
+
+    private static void setWeight(float[] weights, Lookup lookup, int slot, int index, float weight) {
+        weights[index] = weight;
+        lookup.lastIndices[slot] = index;
+    }
+
+    /**
+     * Computes the weight of each child for the given blend position with
+     * gradient band interpolation in polar space. Each child gets the
+     * smallest of its influences relative to the other childs, then the
+     * weights are normalized. A child at the origin is weighted by magnitude
+     * only.
+     *
+     * @param x       - The blend position on the X axis.
+     * @param y       - The blend position on the Y axis.
+     * @param weights - The buffer receiving the weights, one per child.
+     */
+    public void computeDirectionalWeights(float x, float y, float[] weights) {
+        int count = px.length;
+        float magnitude = (float) Math.sqrt(x * x + y * y);
+        float total = 0;
+
+        for (int i = 0; i < count; i++) {
+            float mi = magnitudes[i];
+            // the angle term of a pair is zero when either point is at the origin
+            float ipy = (mi > EPSILON && magnitude > EPSILON) ? signedAngle(px[i], py[i], x, y) * ANGLE_INFLUENCE : 0;
+            float weight = 1f;
+
+            for (int j = 0, k = i * count; j < count && weight > 0; j++, k++) {
+                float ipx = (magnitude - mi) * pairInvMean[k];
+                float h = 1f - (ipx * pairX[k] + ipy * pairY[k]) * pairInvLengthSquared[k];
+                weight = Math.min(weight, Math.max(0, h));
+            }
+
+            weights[i] = weight;
+            total += weight;
+        }
+
+        if (total > 0) {
+            for (int i = 0; i < count; i++) {
+                weights[i] /= total;
+            }
+        }
+    }
+
+    /**
+     * Computes the terms of the directional weights that depend on the
+     * positions of the points only. The pairs that must be ignored (a point
+     * with itself, or two points at the origin) keep zero terms, so they
+     * never lower a weight.
+     */
+    private void buildDirectionalPairs() {
+        int count = px.length;
+        magnitudes = new float[count];
+        for (int i = 0; i < count; i++) {
+            magnitudes[i] = (float) Math.sqrt(px[i] * px[i] + py[i] * py[i]);
+        }
+
+        pairInvMean = new float[count * count];
+        pairX = new float[count * count];
+        pairY = new float[count * count];
+        pairInvLengthSquared = new float[count * count];
+
+        for (int i = 0; i < count; i++) {
+            float mi = magnitudes[i];
+            for (int j = 0; j < count; j++) {
+                float mj = magnitudes[j];
+                float mean = (mi + mj) / 2f;
+                if (j == i || mean < EPSILON) {
+                    continue;
+                }
+
+                float ijx = (mj - mi) / mean;
+                float ijy = 0;
+                if (mi > EPSILON && mj > EPSILON) {
+                    ijy = signedAngle(px[i], py[i], px[j], py[j]) * ANGLE_INFLUENCE;
+                }
+                float lengthSquared = ijx * ijx + ijy * ijy;
+                if (lengthSquared < EPSILON) {
+                    continue;
+                }
+
+                int k = i * count + j;
+                pairInvMean[k] = 1f / mean;
+                pairX[k] = ijx;
+                pairY[k] = ijy;
+                pairInvLengthSquared[k] = 1f / lengthSquared;
+            }
+        }
+    }
+
+    private static float signedAngle(float ax, float ay, float bx, float by) {
+        return (float) Math.atan2(ax * by - ay * bx, ax * bx + ay * by);
+    }
+
+    /**
+     * Returns the triangle containing the blend position and sets its weights,
+     * or -1 if the position is outside the triangulation.
+     */
+    private int findTriangle(float x, float y, float[] weights, Lookup lookup) {
+        if (gridSize == 0) {
+            return -1;
+        }
+        int cx = (int) ((x - minX) / cellWidth);
+        int cy = (int) ((y - minY) / cellHeight);
+        if (cx < 0 || cy < 0 || cx > gridSize || cy > gridSize) {
+            return -1;
+        }
+        // points on the max border belong to the last cell
+        int cell = Math.min(cy, gridSize - 1) * gridSize + Math.min(cx, gridSize - 1);
+
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            int tri = cellTriangles[i];
+            if (setBarycentric(tri, x, y, weights, lookup)) {
+                return tri;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the barycentric weights if the triangle contains the blend position.
+     */
+    private boolean setBarycentric(int tri, float x, float y, float[] weights, Lookup lookup) {
+        int a = triangles[tri * 3];
+        int b = triangles[tri * 3 + 1];
+        int c = triangles[tri * 3 + 2];
+
+        float v0x = px[b] - px[a], v0y = py[b] - py[a];
+        float v1x = px[c] - px[a], v1y = py[c] - py[a];
+        float v2x = x - px[a], v2y = y - py[a];
+        float den = v0x * v1y - v1x * v0y;
+
+        float wb = (v2x * v1y - v1x * v2y) / den;
+        float wc = (v0x * v2y - v2x * v0y) / den;
+        float wa = 1f - wb - wc;
+
+        if (wa < -EPSILON || wb < -EPSILON || wc < -EPSILON) {
+            return false;
+        }
+
+        setWeight(weights, lookup, 0, a, Math.max(0, wa));
+        setWeight(weights, lookup, 1, b, Math.max(0, wb));
+        setWeight(weights, lookup, 2, c, Math.max(0, wc));
+        return true;
+    }
+
+    /**
+     * Bowyer-Watson Delaunay triangulation.
+     */
+    private void triangulate() {
+        int count = px.length;
+        List<int[]> result = new ArrayList<>();
+
+        if (count >= 3) {
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            float lowX = Float.MAX_VALUE, lowY = Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                lowX = Math.min(lowX, px[i]);
+                lowY = Math.min(lowY, py[i]);
+                maxX = Math.max(maxX, px[i]);
+                maxY = Math.max(maxY, py[i]);
+            }
+            double delta = Math.max(Math.max(maxX - lowX, maxY - lowY), 1f);
+            double midX = (lowX + maxX) / 2.0;
+            double midY = (lowY + maxY) / 2.0;
+
+            // the points followed by the vertices of a super triangle containing all of them
+            double[] x = new double[count + 3];
+            double[] y = new double[count + 3];
+            for (int i = 0; i < count; i++) {
+                x[i] = px[i];
+                y[i] = py[i];
+            }
+            x[count] = midX - 20 * delta;
+            y[count] = midY - delta;
+            x[count + 1] = midX;
+            y[count + 1] = midY + 20 * delta;
+            x[count + 2] = midX + 20 * delta;
+            y[count + 2] = midY - delta;
+
+            List<int[]> tris = new ArrayList<>();
+            tris.add(new int[] { count, count + 1, count + 2 });
+
+            for (int p = 0; p < count; p++) {
+                List<int[]> bad = new ArrayList<>();
+                for (int[] t : tris) {
+                    if (inCircumcircle(x, y, t, p)) {
+                        bad.add(t);
+                    }
+                }
+
+                // the boundary of the cavity is made of the edges not shared by two bad triangles
+                Map<Long, int[]> boundary = new HashMap<>();
+                for (int[] t : bad) {
+                    for (int e = 0; e < 3; e++) {
+                        int a = t[e];
+                        int b = t[(e + 1) % 3];
+                        Long key = edgeKey(a, b, count + 3);
+                        if (boundary.remove(key) == null) {
+                            boundary.put(key, new int[] { a, b });
+                        }
+                    }
+                }
+
+                tris.removeAll(bad);
+                for (int[] edge : boundary.values()) {
+                    tris.add(new int[] { edge[0], edge[1], p });
+                }
+            }
+
+            for (int[] t : tris) {
+                if (t[0] < count && t[1] < count && t[2] < count) {
+                    double area = (x[t[1]] - x[t[0]]) * (y[t[2]] - y[t[0]]) - (x[t[2]] - x[t[0]]) * (y[t[1]] - y[t[0]]);
+                    if (Math.abs(area) > EPSILON) {
+                        result.add(t);
+                    }
+                }
+            }
+        }
+
+        triangles = new int[result.size() * 3];
+        for (int i = 0; i < result.size(); i++) {
+            System.arraycopy(result.get(i), 0, triangles, i * 3, 3);
+        }
+    }
+
+    private static boolean inCircumcircle(double[] x, double[] y, int[] t, int p) {
+        double ax = x[t[0]] - x[p], ay = y[t[0]] - y[p];
+        double bx = x[t[1]] - x[p], by = y[t[1]] - y[p];
+        double cx = x[t[2]] - x[p], cy = y[t[2]] - y[p];
+
+        double det = (ax * ax + ay * ay) * (bx * cy - cx * by)
+                   - (bx * bx + by * by) * (ax * cy - cx * ay)
+                   + (cx * cx + cy * cy) * (ax * by - bx * ay);
+
+        double orientation = (x[t[1]] - x[t[0]]) * (y[t[2]] - y[t[0]]) - (x[t[2]] - x[t[0]]) * (y[t[1]] - y[t[0]]);
+        return orientation > 0 ? det > 0 : det < 0;
+    }
+
+    private static Long edgeKey(int a, int b, int count) {
+        return (long) Math.min(a, b) * count + Math.max(a, b);
+    }
+
+    /**
+     * The hull edges are the edges used by a single triangle. When the points
+     * are collinear there are no triangles, and the hull is the chain of
+     * points sorted along the line.
+     */
+    private void buildHull() {
+        int count = px.length;
+        Map<Long, int[]> edges = new HashMap<>();
+        for (int i = 0; i < triangles.length; i += 3) {
+            for (int e = 0; e < 3; e++) {
+                int a = triangles[i + e];
+                int b = triangles[i + (e + 1) % 3];
+                Long key = edgeKey(a, b, count);
+                if (edges.remove(key) == null) {
+                    edges.put(key, new int[] { a, b });
+                }
+            }
+        }
+
+        if (triangles.length == 0 && count >= 2) {
+            // collinear points: sort along the axis with the largest extent
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            float lowX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, lowY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                lowX = Math.min(lowX, px[i]);
+                maxX = Math.max(maxX, px[i]);
+                lowY = Math.min(lowY, py[i]);
+                maxY = Math.max(maxY, py[i]);
+            }
+            final float[] axis = (maxX - lowX >= maxY - lowY) ? px : py;
+            Arrays.sort(order, (i, j) -> Float.compare(axis[i], axis[j]));
+            for (int i = 0; i < count - 1; i++) {
+                edges.put((long) i, new int[] { order[i], order[i + 1] });
+            }
+        }
+
+        hullEdges = new int[edges.size() * 2];
+        int i = 0;
+        for (int[] edge : edges.values()) {
+            hullEdges[i++] = edge[0];
+            hullEdges[i++] = edge[1];
+        }
+    }
+
+    /**
+     * Registers each triangle in the grid cells overlapped by its bounding box.
+     */
+    private void buildGrid() {
+        int triangleCount = triangles.length / 3;
+        if (triangleCount == 0) {
+            gridSize = 0;
+            return;
+        }
+
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        minX = Float.MAX_VALUE;
+        minY = Float.MAX_VALUE;
+        for (int i = 0; i < px.length; i++) {
+            minX = Math.min(minX, px[i]);
+            minY = Math.min(minY, py[i]);
+            maxX = Math.max(maxX, px[i]);
+            maxY = Math.max(maxY, py[i]);
+        }
+
+        gridSize = (int) Math.ceil(Math.sqrt(triangleCount));
+        cellWidth = Math.max(maxX - minX, EPSILON) / gridSize;
+        cellHeight = Math.max(maxY - minY, EPSILON) / gridSize;
+
+        int cells = gridSize * gridSize;
+        List<List<Integer>> lists = new ArrayList<>(cells);
+        for (int i = 0; i < cells; i++) {
+            lists.add(new ArrayList<>());
+        }
+
+        int total = 0;
+        for (int t = 0; t < triangleCount; t++) {
+            float tMinX = Float.MAX_VALUE, tMinY = Float.MAX_VALUE, tMaxX = -Float.MAX_VALUE, tMaxY = -Float.MAX_VALUE;
+            for (int k = 0; k < 3; k++) {
+                int p = triangles[t * 3 + k];
+                tMinX = Math.min(tMinX, px[p]);
+                tMinY = Math.min(tMinY, py[p]);
+                tMaxX = Math.max(tMaxX, px[p]);
+                tMaxY = Math.max(tMaxY, py[p]);
+            }
+            int x0 = clampCell((tMinX - minX) / cellWidth);
+            int x1 = clampCell((tMaxX - minX) / cellWidth);
+            int y0 = clampCell((tMinY - minY) / cellHeight);
+            int y1 = clampCell((tMaxY - minY) / cellHeight);
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    lists.get(cy * gridSize + cx).add(t);
+                    total++;
+                }
+            }
+        }
+
+        cellStart = new int[cells + 1];
+        cellTriangles = new int[total];
+        int offset = 0;
+        for (int i = 0; i < cells; i++) {
+            cellStart[i] = offset;
+            for (int t : lists.get(i)) {
+                cellTriangles[offset++] = t;
+            }
+        }
+        cellStart[cells] = offset;
+    }
+
+    private int clampCell(float value) {
+        return Math.max(0, Math.min(gridSize - 1, (int) value));
+    }
+
+}
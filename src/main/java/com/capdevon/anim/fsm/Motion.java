@@ -1,11 +1,19 @@
 package com.capdevon.anim.fsm;
 
+import java.io.IOException;
+
+import com.jme3.export.InputCapsule;
+import com.jme3.export.JmeExporter;
+import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
+
 /**
  * Motions are used by animation States in the animator StateMachines.
  * 
  * @author capdevon
  */
-public class Motion {
+public class Motion implements Savable {
 
     //The name of the object.
     protected String name;
@@ -21,4 +29,16 @@ public class Motion {
         return name;
     }
 
+    @Override
+    public void write(JmeExporter ex) throws IOException {
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(name, "name", null);
+    }
+
+    @Override
+    public void read(JmeImporter im) throws IOException {
+        InputCapsule ic = im.getCapsule(this);
+        name = ic.readString("name", null);
+    }
+
 }
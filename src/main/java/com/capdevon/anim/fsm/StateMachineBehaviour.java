@@ -30,4 +30,16 @@ public interface StateMachineBehaviour {
      */
     public void onStateExit(AnimatorController animator);
 
+    /**
+     * Returns true if onStateUpdate must be called. Behaviours that only react
+     * to onStateEnter and onStateExit can return false, so the states using
+     * them skip the per-frame dispatch. Queried once, when the behaviour is
+     * added to a state.
+     *
+     * @return
+     */
+    public default boolean wantsUpdate() {
+        return true;
+    }
+
 }
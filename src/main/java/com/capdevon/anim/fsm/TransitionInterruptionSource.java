@@ -0,0 +1,14 @@
+package com.capdevon.anim.fsm;
+
+/**
+ * Specifies which transitions can interrupt a transition in progress.
+ *
+ * @author capdevon
+ */
+public enum TransitionInterruptionSource {
+    None,                   //The transition cannot be interrupted.
+    Source,                 //The transition can be interrupted by the transitions of the source state.
+    Destination,            //The transition can be interrupted by the transitions of the destination state.
+    SourceThenDestination,  //The transitions of the source state are checked first, then those of the destination state.
+    DestinationThenSource   //The transitions of the destination state are checked first, then those of the source state.
+}
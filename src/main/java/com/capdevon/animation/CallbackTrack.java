@@ -8,8 +8,11 @@ import com.jme3.animation.AnimChannel;
 import com.jme3.animation.AnimControl;
 import com.jme3.animation.AnimEventListener;
 import com.jme3.animation.Track;
+import com.jme3.export.InputCapsule;
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
+import com.jme3.export.OutputCapsule;
+import com.jme3.export.Savable;
 import com.jme3.util.TempVars;
 import com.jme3.util.clone.Cloner;
 import com.jme3.util.clone.JmeCloneable;
@@ -141,14 +144,28 @@ public class CallbackTrack implements Track, JmeCloneable {
         this.tween = cloner.clone(tween);
     }
 
+    /**
+     * Writes the track.
+     *
+     * @throws IOException if the tween is not Savable
+     */
     @Override
     public void write(JmeExporter ex) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (tween != null && !(tween instanceof Savable)) {
+            throw new IOException("CallbackTrack tween is not Savable: " + tween.getClass().getName());
+        }
+        OutputCapsule oc = ex.getCapsule(this);
+        oc.write(length, "length", 0f);
+        oc.write(startOffset, "startOffset", 0f);
+        oc.write((Savable) tween, "tween", null);
     }
 
     @Override
     public void read(JmeImporter im) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        InputCapsule ic = im.getCapsule(this);
+        length = ic.readFloat("length", 0f);
+        startOffset = ic.readFloat("startOffset", 0f);
+        tween = (Tween) ic.readSavable("tween", null);
     }
     
 }
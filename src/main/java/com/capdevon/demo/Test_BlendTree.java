@@ -190,7 +190,7 @@ public class Test_BlendTree extends SimpleApplication {
         AnimatorStateMachine sm = animator.getLayer(0).getStateMachine();
         AnimatorState idle = sm.addState("Idle", AnimDefs.RifleIdle);
 
-        // Create blend tree with the minimum and maximum threshold for the LinearBlendSpace class
+        // Create blend tree with the minimum and maximum threshold
         BlendTree tree = new BlendTree(0, 1);
         // Configure the name of the parameter that controls the mixing of animations.
         tree.setBlendParameter("moveSpeed");
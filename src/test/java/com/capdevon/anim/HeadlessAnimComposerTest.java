@@ -0,0 +1,55 @@
+package com.capdevon.anim;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.jme3.anim.AnimClip;
+import com.jme3.anim.AnimComposer;
+import com.jme3.anim.AnimTrack;
+import com.jme3.scene.Node;
+
+/**
+ * Compares the time of the layers of a HeadlessAnimComposer with the time
+ * of a regular AnimComposer playing the same clips.
+ *
+ * @author capdevon
+ */
+public class HeadlessAnimComposerTest {
+
+    private void assertSameTime(double speed) {
+        HeadlessAnimComposer headless = new HeadlessAnimComposer();
+        headless.addClip("walk", 1);
+
+        AnimComposer regular = new AnimComposer();
+        AnimClip clip = new AnimClip("walk");
+        clip.setTracks(new AnimTrack[] { new HeadlessAnimComposer.LengthTrack(1) });
+        regular.addAnimClip(clip);
+
+        Node headlessNode = new Node("Headless");
+        headlessNode.addControl(headless);
+        Node regularNode = new Node("Regular");
+        regularNode.addControl(regular);
+
+        headless.setCurrentAction("walk").setSpeed(speed);
+        regular.setCurrentAction("walk").setSpeed(speed);
+
+        for (int i = 0; i < 20; i++) {
+            headlessNode.updateLogicalState(0.3f);
+            regularNode.updateLogicalState(0.3f);
+            assertEquals("time at update " + i, regular.getTime(AnimComposer.DEFAULT_LAYER),
+                    headless.getTime(AnimComposer.DEFAULT_LAYER), 1e-6);
+        }
+    }
+
+    @Test
+    public void testForward() {
+        assertSameTime(1);
+    }
+
+    @Test
+    public void testBackward() {
+        assertSameTime(-1);
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.capdevon.anim;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jme3.anim.AnimClip;
+import com.jme3.anim.AnimTrack;
+import com.jme3.anim.TransformTrack;
+import com.jme3.anim.tween.action.ClipAction;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+
+/**
+ * Blends two clips moving a spatial.
+ *
+ * @author capdevon
+ */
+public class WeightedBlendActionTest {
+
+    private static final float DELTA = 1e-4f;
+
+    private final Node node = new Node("Target");
+    private WeightedBlendAction action;
+
+    private ClipAction createAction(String name, Vector3f translation) {
+        float[] times = { 0, 1 };
+        Vector3f[] translations = { translation, translation };
+        AnimClip clip = new AnimClip(name);
+        clip.setTracks(new AnimTrack[] { new TransformTrack(node, times, translations, null, null) });
+        return new ClipAction(clip);
+    }
+
+    @Before
+    public void setUp() {
+        action = new WeightedBlendAction(createAction("x", new Vector3f(2, 0, 0)), createAction("y", new Vector3f(0, 4, 0)));
+        action.setTransitionLength(0);
+    }
+
+    private void assertTranslation(float x, float y) {
+        assertEquals(x, node.getLocalTranslation().x, DELTA);
+        assertEquals(y, node.getLocalTranslation().y, DELTA);
+    }
+
+    @Test
+    public void testNormalizedWeights() {
+        action.setWeight(0, 0.5f);
+        action.setWeight(1, 0f);
+        action.interpolate(0.5);
+        assertTranslation(2, 0);
+
+        action.setWeight(1, 0.5f);
+        action.interpolate(0.5);
+        assertTranslation(1, 2);
+    }
+
+    @Test
+    public void testAbsoluteWeights() {
+        action.setNormalized(false);
+        action.setWeight(0, 0.5f);
+        action.setWeight(1, 0f);
+        action.interpolate(0.5);
+        assertTranslation(1, 0);
+
+        // the pose does not drift from one frame to the next
+        action.interpolate(0.5);
+        assertTranslation(1, 0);
+
+        action.setWeight(0, 1f);
+        action.setWeight(1, 0.5f);
+        action.interpolate(0.5);
+        assertTranslation(1, 2);
+
+        action.setWeight(0, 0f);
+        action.setWeight(1, 0f);
+        action.interpolate(0.5);
+        assertTranslation(0, 0);
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.capdevon.anim.fsm.BlendTree.BlendTreeType;
+import com.jme3.anim.AnimClip;
+import com.jme3.anim.AnimComposer;
+import com.jme3.anim.AnimTrack;
+import com.jme3.anim.Armature;
+import com.jme3.anim.Joint;
+import com.jme3.anim.TransformTrack;
+import com.jme3.math.FastMath;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+
+/**
+ * Checks that the update of the state machines does not allocate once the
+ * controller is warmed up, whatever the type of the blend tree played.
+ *
+ * @author capdevon
+ */
+public class AnimatorAllocationTest {
+
+    private static final float TPF = 1 / 60f;
+    private static final int WARMUP_UPDATES = 50000;
+    private static final int UPDATES = 10000;
+    private static final int MEASUREMENTS = 5;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private AnimatorController animator;
+    //The model updated with the controller, or null to update only the controller.
+    private Node model;
+    private int xId;
+    private int yId;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private BlendTree createModel(BlendTreeType blendType) {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        for (String name : new String[] { "idle", "walk", "run", "left", "right" }) {
+            composer.addClip(name, 1);
+        }
+        animator = new AnimatorController(composer);
+        return createBlendTree(blendType);
+    }
+
+    /**
+     * Creates a model with a small armature and a regular AnimComposer, so
+     * the update also interpolates the clips and blends the joint transforms.
+     */
+    private BlendTree createArmatureModel(BlendTreeType blendType) {
+        AnimComposer composer = createArmatureComposer();
+        model = new Node("Model");
+        model.addControl(composer);
+        animator = new AnimatorController(composer);
+        model.addControl(animator);
+        return createBlendTree(blendType);
+    }
+
+    private AnimComposer createArmatureComposer() {
+        Joint root = new Joint("root");
+        Joint[] joints = { root, new Joint("spine"), new Joint("head"), new Joint("arm") };
+        root.addChild(joints[1]);
+        joints[1].addChild(joints[2]);
+        joints[1].addChild(joints[3]);
+        Armature armature = new Armature(joints);
+        armature.saveBindPose();
+        armature.saveInitialPose();
+
+        AnimComposer composer = new AnimComposer();
+        String[] names = { "idle", "walk", "run", "left", "right" };
+        for (int i = 0; i < names.length; i++) {
+            composer.addAnimClip(createClip(names[i], joints, i));
+        }
+        return composer;
+    }
+
+    private AnimClip createClip(String name, Joint[] joints, int index) {
+        float[] times = { 0, 0.5f, 1 };
+        AnimTrack<?>[] tracks = new AnimTrack<?>[joints.length];
+        for (int i = 0; i < joints.length; i++) {
+            Vector3f[] translations = new Vector3f[times.length];
+            Quaternion[] rotations = new Quaternion[times.length];
+            for (int j = 0; j < times.length; j++) {
+                translations[j] = new Vector3f(index, j, i);
+                rotations[j] = new Quaternion().fromAngles(0.1f * index, 0.2f * j, 0.3f * i);
+            }
+            tracks[i] = new TransformTrack(joints[i], times, translations, rotations, null);
+        }
+        AnimClip clip = new AnimClip(name);
+        clip.setTracks(tracks);
+        return clip;
+    }
+
+    private BlendTree createBlendTree(BlendTreeType blendType) {
+        xId = animator.addParameter("x", AnimatorControllerParameterType.Float);
+        yId = animator.addParameter("y", AnimatorControllerParameterType.Float);
+
+        BlendTree tree = new BlendTree();
+        tree.setBlendType(blendType);
+        tree.setBlendParameter("x");
+        tree.setBlendParameterY("y");
+        return tree;
+    }
+
+    private void play(BlendTree tree) {
+        AnimatorStateMachine sm = animator.getLayer(0).getStateMachine();
+        AnimatorState state = sm.createBlendTree("Move", tree);
+        sm.setDefaultState(state);
+    }
+
+    private void add2DChilds(BlendTree tree) {
+        tree.addChild("idle", new Vector2f(0, 0));
+        tree.addChild("walk", new Vector2f(0, 1));
+        tree.addChild("run", new Vector2f(0, 2));
+        tree.addChild("left", new Vector2f(-1, 0));
+        tree.addChild("right", new Vector2f(1, 0));
+    }
+
+    /**
+     * Moves the blend position around, so the lookups change bracket and
+     * triangle, and returns the bytes allocated by the updates.
+     */
+    private long update(int count) {
+        long threadId = Thread.currentThread().getId();
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            float angle = (i % 360) * FastMath.DEG_TO_RAD;
+            animator.setFloat(xId, 1.5f * FastMath.cos(angle));
+            animator.setFloat(yId, 1 + FastMath.sin(angle));
+            if (model != null) {
+                model.updateLogicalState(TPF);
+            } else {
+                animator.updateLayers(TPF);
+            }
+        }
+        return threadBean.getThreadAllocatedBytes(threadId) - start;
+    }
+
+    /**
+     * Returns the bytes allocated by the updates of a regular AnimComposer
+     * playing a single ClipAction. The AnimComposer allocates a little on its
+     * own at each update, which is not part of the blend path under test.
+     */
+    private long updateClipAction(AnimComposer composer, int count) {
+        long threadId = Thread.currentThread().getId();
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            composer.update(TPF);
+        }
+        return threadBean.getThreadAllocatedBytes(threadId) - start;
+    }
+
+    private long measureClipAction() {
+        AnimComposer composer = createArmatureComposer();
+        composer.setCurrentAction("walk");
+        updateClipAction(composer, WARMUP_UPDATES);
+        long overhead = updateClipAction(composer, 0);
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            allocated = Math.min(allocated, updateClipAction(composer, UPDATES) - overhead);
+        }
+        return allocated;
+    }
+
+    /**
+     * The interpreter and the first compilations allocate, so the smallest
+     * of a few measurements is kept once the code is compiled. A model with
+     * a regular AnimComposer may allocate only what the AnimComposer does
+     * when playing a plain ClipAction.
+     */
+    private void assertNoAllocation() {
+        long expected = (model != null) ? measureClipAction() : 0;
+        update(WARMUP_UPDATES);
+        // the allocations of the measurement itself
+        long overhead = update(0);
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < MEASUREMENTS && allocated > expected; i++) {
+            allocated = Math.min(allocated, update(UPDATES) - overhead);
+        }
+        // the JIT can remove the allocations of the AnimComposer once warm
+        String msg = String.format("%d bytes allocated by %d updates, expected at most %d", allocated, UPDATES, expected);
+        assertTrue(msg, allocated <= expected);
+    }
+
+    @Test
+    public void testSimple1D() {
+        BlendTree tree = createModel(BlendTreeType.Simple1D);
+        tree.addChild("run", 1f);
+        tree.addChild("idle", -1f);
+        tree.addChild("walk", 0f);
+        play(tree);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void testSimpleDirectional2D() {
+        BlendTree tree = createModel(BlendTreeType.SimpleDirectional2D);
+        add2DChilds(tree);
+        play(tree);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void testFreeformCartesian2D() {
+        BlendTree tree = createModel(BlendTreeType.FreeformCartesian2D);
+        add2DChilds(tree);
+        play(tree);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void testFreeformDirectional2D() {
+        BlendTree tree = createModel(BlendTreeType.FreeformDirectional2D);
+        add2DChilds(tree);
+        play(tree);
+        assertNoAllocation();
+    }
+
+    @Test
+    public void testDirect() {
+        BlendTree tree = createModel(BlendTreeType.Direct);
+        tree.addChild("walk", "x");
+        tree.addChild("run", "y");
+        play(tree);
+        assertNoAllocation();
+    }
+
+    /**
+     * The clips of a freeform tree are interpolated and blended on the joints
+     * of an armature, under an additive layer.
+     */
+    @Test
+    public void testArmatureFreeform() {
+        BlendTree tree = createArmatureModel(BlendTreeType.FreeformCartesian2D);
+        add2DChilds(tree);
+        play(tree);
+
+        AnimatorControllerLayer layer = animator.addLayer("Additive", null);
+        layer.setBlendingMode(AnimatorLayerBlendingMode.Additive);
+        layer.getStateMachine().setDefaultState(layer.getStateMachine().addState("Lean", "left"));
+        animator.setLayerWeight(1, 0.5f);
+        assertNoAllocation();
+    }
+
+    /**
+     * The clips of a Direct tree are applied as absolute blend factors on the
+     * joints of an armature.
+     */
+    @Test
+    public void testArmatureDirect() {
+        BlendTree tree = createArmatureModel(BlendTreeType.Direct);
+        tree.addChild("walk", "x");
+        tree.addChild("run", "y");
+        play(tree);
+        assertNoAllocation();
+    }
+
+}
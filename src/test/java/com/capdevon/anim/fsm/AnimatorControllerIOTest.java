@@ -0,0 +1,214 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.capdevon.anim.AvatarMask;
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.capdevon.anim.fsm.BlendTree.BlendTreeType;
+import com.jme3.math.Vector2f;
+import com.jme3.scene.Node;
+
+/**
+ * Saves a controller graph, loads it back and runs the loaded copy against
+ * the original.
+ *
+ * @author capdevon
+ */
+public class AnimatorControllerIOTest {
+
+    private static final float TPF = 1 / 60f;
+    private static final double DELTA = 1e-6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HeadlessAnimComposer createComposer() {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        composer.addClip("idle", 1);
+        composer.addClip("walk", 1);
+        composer.addClip("run", 0.5);
+        composer.addClip("left", 1);
+        composer.addClip("right", 1);
+        composer.addClip("jump", 0.5);
+        composer.addClip("land", 0.5);
+        composer.addClip("aim", 2);
+        return composer;
+    }
+
+    private static Node createModel(HeadlessAnimComposer composer, AnimatorController animator) {
+        Node model = new Node("Model");
+        model.addControl(composer);
+        model.addControl(animator);
+        return model;
+    }
+
+    private static AnimatorController createGraph(HeadlessAnimComposer composer) {
+        AnimatorController animator = new AnimatorController(composer);
+        animator.addParameter("speed", AnimatorControllerParameterType.Float);
+        animator.addParameter("x", AnimatorControllerParameterType.Float);
+        animator.addParameter("y", AnimatorControllerParameterType.Float);
+        animator.addParameter("aimWeight", AnimatorControllerParameterType.Float);
+        animator.addParameter("stance", AnimatorControllerParameterType.Int);
+        animator.addParameter("aim", AnimatorControllerParameterType.Bool);
+        animator.addParameter("jump", AnimatorControllerParameterType.Trigger);
+
+        AnimatorStateMachine sm = animator.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        sm.setDefaultState(idle);
+
+        // a 1D tree with a nested freeform tree
+        BlendTree strafe = new BlendTree();
+        strafe.setBlendType(BlendTreeType.FreeformCartesian2D);
+        strafe.setBlendParameter("x");
+        strafe.setBlendParameterY("y");
+        strafe.addChild("walk", new Vector2f(0, 1));
+        strafe.addChild("left", new Vector2f(-1, 0));
+        strafe.addChild("right", new Vector2f(1, 0));
+        strafe.addChild("idle", new Vector2f(0, 0));
+
+        BlendTree move = new BlendTree();
+        move.setBlendParameter("speed");
+        move.addChild("idle", 0f);
+        move.addChild(strafe, 0.5f);
+        move.addChild("run", 1f);
+        AnimatorState moveState = sm.createBlendTree("Move", move);
+
+        BlendTree directional = new BlendTree();
+        directional.setBlendType(BlendTreeType.FreeformDirectional2D);
+        directional.setBlendParameter("x");
+        directional.setBlendParameterY("y");
+        directional.addChild("idle", new Vector2f(0, 0));
+        directional.addChild("walk", new Vector2f(0, 1));
+        directional.addChild("run", new Vector2f(0, 2));
+        directional.addChild("left", new Vector2f(-1, 0));
+        directional.addChild("right", new Vector2f(1, 0));
+        AnimatorState locomotion = sm.createBlendTree("Locomotion", directional);
+
+        // a sub-state machine left through the Exit node
+        AnimatorStateMachine air = sm.addStateMachine("Air");
+        AnimatorState jump = air.addState("Jump", "jump");
+        air.setDefaultState(jump);
+        BlendTree direct = new BlendTree();
+        direct.setBlendType(BlendTreeType.Direct);
+        direct.addChild("land", "x");
+        direct.addChild("idle", "y");
+        AnimatorState land = air.createBlendTree("Land", direct);
+        jump.addTransition(land, 0.8f);
+        land.addExitTransition().addCondition(AnimatorConditionMode.Less, 0.1f, "speed");
+        air.addTransition(idle);
+
+        idle.addTransition(moveState).addCondition(AnimatorConditionMode.Greater, 0.1f, "speed");
+        idle.addTransition(air).addCondition(AnimatorConditionMode.If, 0, "jump");
+        moveState.addTransition(idle).addCondition(AnimatorConditionMode.Less, 0.1f, "speed");
+        moveState.addTransition(locomotion).addCondition(AnimatorConditionMode.Equals, 1, "stance");
+        // checked before the transition to Locomotion
+        AnimatorStateTransition moveJump = moveState.addTransition(air);
+        moveJump.addCondition(AnimatorConditionMode.If, 0, "jump");
+        moveJump.setPriority(1);
+        locomotion.addTransition(moveState).addCondition(AnimatorConditionMode.NotEqual, 1, "stance");
+
+        // a masked additive layer, weighted by a parameter
+        AvatarMask mask = new AvatarMask();
+        mask.addJoint(1);
+        mask.addJoint(3);
+        AnimatorControllerLayer upper = animator.addLayer("UpperBody", mask);
+        upper.setBlendingMode(AnimatorLayerBlendingMode.Additive);
+        upper.setWeightParameter("aimWeight");
+        AnimatorStateMachine upperSm = upper.getStateMachine();
+        AnimatorState empty = upperSm.addState("Empty");
+        AnimatorState aim = upperSm.addState("Aim", "aim");
+        upperSm.setDefaultState(empty);
+        empty.addTransition(aim).addCondition(AnimatorConditionMode.If, 0, "aim");
+        aim.addTransition(empty).addCondition(AnimatorConditionMode.IfNot, 0, "aim");
+        return animator;
+    }
+
+    /**
+     * Applies the inputs scheduled for the given frame.
+     */
+    private static void setInputs(AnimatorController animator, int frame) {
+        if (frame == 10) {
+            animator.setFloat("speed", 0.4f);
+            animator.setFloat("x", 0.3f);
+            animator.setFloat("y", 0.6f);
+        } else if (frame == 40) {
+            animator.setInt("stance", 1);
+            animator.setBool("aim", true);
+            animator.setFloat("aimWeight", 0.5f);
+        } else if (frame == 70) {
+            animator.setFloat("x", -0.7f);
+            animator.setFloat("y", 1.2f);
+        } else if (frame == 100) {
+            animator.setInt("stance", 0);
+            animator.setBool("aim", false);
+        } else if (frame == 130) {
+            // both transitions of Move are ready, the priority decides
+            animator.setInt("stance", 1);
+            animator.setTrigger("jump");
+        } else if (frame == 170) {
+            animator.setFloat("speed", 0f);
+        }
+    }
+
+    private static String currentState(AnimatorController animator, int layer) {
+        AnimatorState state = animator.getCurrentAnimatorStateInfo(layer).getCurrentState();
+        return (state != null) ? state.getName() : null;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        HeadlessAnimComposer composer = createComposer();
+        AnimatorController original = createGraph(composer);
+        Node originalModel = createModel(composer, original);
+
+        File file = folder.newFile("animator.j3o");
+        AnimatorControllerIO.save(original, file);
+
+        AnimatorController loaded = AnimatorControllerIO.load(file);
+        Node loadedModel = createModel(createComposer(), loaded);
+
+        assertEquals(2, loaded.getLayers().size());
+        AnimatorControllerLayer upper = loaded.getLayer("UpperBody");
+        assertEquals(AnimatorLayerBlendingMode.Additive, upper.getBlendingMode());
+        assertEquals("aimWeight", upper.getWeightParameter());
+        AvatarMask expectedMask = (AvatarMask) original.getLayer("UpperBody").getAvatarMask();
+        AvatarMask mask = (AvatarMask) upper.getAvatarMask();
+        assertTrue(mask.containsAll(expectedMask) && expectedMask.containsAll(mask));
+
+        Set<String> visited = new HashSet<>();
+        for (int frame = 0; frame < 240; frame++) {
+            setInputs(original, frame);
+            setInputs(loaded, frame);
+            originalModel.updateLogicalState(TPF);
+            loadedModel.updateLogicalState(TPF);
+
+            for (int layer = 0; layer < 2; layer++) {
+                String msg = "frame " + frame + ", layer " + layer;
+                AnimatorStateInfo expected = original.getCurrentAnimatorStateInfo(layer);
+                AnimatorStateInfo actual = loaded.getCurrentAnimatorStateInfo(layer);
+                assertEquals(msg, currentState(original, layer), currentState(loaded, layer));
+                assertEquals(msg, expected.getNormalizedTime(), actual.getNormalizedTime(), DELTA);
+                assertEquals(msg, expected.isInTransition(), actual.isInTransition());
+                assertEquals(msg, original.getLayerWeight(layer), loaded.getLayerWeight(layer), DELTA);
+                visited.add(currentState(original, layer));
+            }
+        }
+
+        // every part of the graph has been run
+        for (String state : new String[] { "Idle", "Move", "Locomotion", "Jump", "Land", "Empty", "Aim" }) {
+            assertTrue("visited " + state, visited.contains(state));
+        }
+    }
+
+}
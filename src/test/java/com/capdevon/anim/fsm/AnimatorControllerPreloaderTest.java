@@ -0,0 +1,49 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Prepares controllers on a background executor.
+ *
+ * @author capdevon
+ */
+public class AnimatorControllerPreloaderTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A failed loading is reported to the error callback by the update.
+     */
+    @Test
+    public void testLoadFailure() throws InterruptedException {
+        AnimatorControllerPreloader preloader = new AnimatorControllerPreloader(executor);
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        preloader.loadTemplate(new File("missing.anim"), animator -> {
+            throw new AssertionError("onReady called");
+        }, error::set);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(1, preloader.getPendingCount());
+        preloader.update(0);
+        assertNotNull(error.get());
+        assertEquals(0, preloader.getPendingCount());
+    }
+
+}
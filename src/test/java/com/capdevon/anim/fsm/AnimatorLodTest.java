@@ -0,0 +1,51 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Node;
+
+/**
+ * Updates many controllers sharing a level of detail.
+ *
+ * @author capdevon
+ */
+public class AnimatorLodTest {
+
+    private static final float TPF = 1 / 60f;
+
+    /**
+     * The controllers of a band are spread over its frame interval, instead
+     * of all updating in the same frame.
+     */
+    @Test
+    public void testUpdatesSpreadOverInterval() {
+        int interval = 4;
+        AnimatorLod lod = new AnimatorLod(new Camera(640, 480));
+        lod.addBand(Float.MAX_VALUE, interval, false);
+
+        AnimatorController[] controllers = new AnimatorController[4 * interval];
+        for (int i = 0; i < controllers.length; i++) {
+            HeadlessAnimComposer composer = new HeadlessAnimComposer();
+            Node model = new Node("Model");
+            model.addControl(composer);
+            controllers[i] = new AnimatorController(composer);
+            model.addControl(controllers[i]);
+            controllers[i].setLod(lod);
+        }
+
+        for (int frame = 0; frame < 3 * interval; frame++) {
+            int updates = 0;
+            for (int i = 0; i < controllers.length; i++) {
+                if (controllers[i].prepareUpdate(TPF)) {
+                    updates++;
+                }
+            }
+            assertEquals("updates in frame " + frame, controllers.length / interval, updates);
+        }
+    }
+
+}
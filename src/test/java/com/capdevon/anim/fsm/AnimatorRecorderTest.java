@@ -0,0 +1,92 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Records controllers and replays the logs on other controllers built from
+ * the same graph.
+ *
+ * @author capdevon
+ */
+public class AnimatorRecorderTest {
+
+    private static final float TPF = 1 / 60f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HeadlessAnimComposer createComposer() {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        composer.addClip("idle", 1);
+        composer.addClip("aim", 1);
+        return composer;
+    }
+
+    /**
+     * A parameter written by a StateMachineBehaviour of the base layer is
+     * read by the upper layer in the same update, during the recording and
+     * during the replay.
+     */
+    @Test
+    public void testInputsWrittenDuringUpdate() throws IOException {
+        AnimatorController template = new AnimatorController(createComposer());
+        template.addParameter("aim", AnimatorControllerParameterType.Bool);
+
+        AnimatorStateMachine sm = template.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        sm.setDefaultState(idle);
+
+        AnimatorControllerLayer layer = template.addLayer("UpperBody", null);
+        layer.setDefaultWeight(0.5f);
+        AnimatorState empty = layer.getStateMachine().addState("Empty");
+        AnimatorState aim = layer.getStateMachine().addState("Aim", "aim");
+        layer.getStateMachine().setDefaultState(empty);
+        empty.addTransition(aim).addCondition(AnimatorConditionMode.If, 0, "aim");
+
+        AnimatorController recorded = new AnimatorController(template, createComposer());
+        idle.addStateMachineBehaviour(new StateMachineBehaviour() {
+            private int updates;
+
+            @Override
+            public void onStateEnter(AnimatorController animator) {
+            }
+
+            @Override
+            public void onStateUpdate(AnimatorController animator, float tpf) {
+                // the graph is shared, only the recorded controller writes the parameter
+                if (animator == recorded && ++updates == 10) {
+                    animator.setBool("aim", true);
+                }
+            }
+
+            @Override
+            public void onStateExit(AnimatorController animator) {
+            }
+        });
+
+        Path log = folder.newFile("animator.log").toPath();
+        try (AnimatorRecorder recorder = new AnimatorRecorder(recorded, log)) {
+            recorder.setRecordStates(true);
+            for (int i = 0; i < 20; i++) {
+                recorded.updateLayers(TPF);
+            }
+        }
+        assertEquals("Aim", recorded.getCurrentAnimatorStateInfo(1).getCurrentState().getName());
+
+        AnimatorController animator = new AnimatorController(template, createComposer());
+        AnimatorReplayer replayer = AnimatorReplayer.open(animator, log);
+        assertEquals(20, replayer.replay());
+        assertEquals(0, replayer.getDivergenceCount());
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+
+/**
+ * Replicates the state of a controller on a remote controller built from the
+ * same graph.
+ *
+ * @author capdevon
+ */
+public class AnimatorStateDecoderTest {
+
+    private static final float TPF = 1 / 60f;
+
+    private AnimatorController server;
+    private AnimatorController client;
+    private AnimatorStateEncoder encoder;
+    private AnimatorStateDecoder decoder;
+    private final ByteBuffer packet = ByteBuffer.allocate(256);
+
+    private static HeadlessAnimComposer createComposer() {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        composer.addClip("idle", 1);
+        composer.addClip("walk", 1);
+        composer.addClip("jump", 1);
+        return composer;
+    }
+
+    @Before
+    public void setUp() {
+        AnimatorController template = new AnimatorController(createComposer());
+        template.addParameter("speed", AnimatorControllerParameterType.Float);
+
+        AnimatorStateMachine sm = template.getLayer(0).getStateMachine();
+        AnimatorState idle = sm.addState("Idle", "idle");
+        AnimatorState walk = sm.addState("Walk", "walk");
+        sm.addState("Jump", "jump");
+        sm.setDefaultState(idle);
+        idle.addTransition(walk).addCondition(AnimatorConditionMode.Greater, 0.5f, "speed");
+
+        server = new AnimatorController(template, createComposer());
+        client = new AnimatorController(template, createComposer());
+        encoder = new AnimatorStateEncoder(server);
+        decoder = new AnimatorStateDecoder(client);
+        tick();
+    }
+
+    /**
+     * Updates both controllers and sends the changes of the server.
+     */
+    private void tick() {
+        server.updateLayers(TPF);
+        packet.clear();
+        if (encoder.encode(packet)) {
+            encoder.commit();
+            packet.flip();
+            decoder.decode(packet);
+        }
+        client.updateLayers(TPF);
+        decoder.reconcile();
+    }
+
+    private String clientState() {
+        return client.getCurrentAnimatorStateInfo(0).getCurrentState().getName();
+    }
+
+    /**
+     * A state reached by the local transitions is blended, not forced.
+     */
+    @Test
+    public void testLocalTransition() {
+        server.setFloat("speed", 1f);
+        tick();
+
+        assertEquals("Walk", clientState());
+        assertTrue(client.getCurrentAnimatorStateInfo(0).isInTransition());
+        assertEquals(0, decoder.getStateCorrections());
+    }
+
+    /**
+     * A state the local transitions cannot reach is forced after the grace
+     * period.
+     */
+    @Test
+    public void testDivergence() {
+        decoder.setGraceUpdates(2);
+        AnimatorState jump = server.getLayer(0).getStateMachine().getState("Jump");
+        server.play(0, jump, 0);
+        tick();
+        assertEquals("Idle", clientState());
+
+        tick();
+        assertEquals("Jump", clientState());
+        assertEquals(1, decoder.getStateCorrections());
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.capdevon.anim.HeadlessAnimComposer;
+import com.capdevon.anim.WeightedBlendAction;
+import com.capdevon.anim.fsm.AnimatorControllerParameter.AnimatorControllerParameterType;
+import com.jme3.anim.AnimComposer;
+import com.jme3.scene.Node;
+
+/**
+ * Runs state machines on a HeadlessAnimComposer.
+ *
+ * @author capdevon
+ */
+public class AnimatorStateMachineTest {
+
+    private static final float TPF = 1 / 60f;
+
+    private Node model;
+    private AnimatorController animator;
+
+    private AnimatorStateMachine createModel(String... clipNames) {
+        HeadlessAnimComposer composer = new HeadlessAnimComposer();
+        for (String name : clipNames) {
+            composer.addClip(name, 1);
+        }
+        animator = new AnimatorController(composer);
+        model = new Node("Model");
+        model.addControl(composer);
+        model.addControl(animator);
+        return animator.getLayer(0).getStateMachine();
+    }
+
+    private void simulate(float seconds) {
+        for (float time = 0; time < seconds; time += TPF) {
+            model.updateLogicalState(TPF);
+        }
+    }
+
+    private String currentState() {
+        return animator.getCurrentAnimatorStateInfo(0).getCurrentState().getName();
+    }
+
+    /**
+     * A transition whose condition still holds is taken again after an
+     * interruption brought the layer back to its source state.
+     */
+    @Test
+    public void testTransitionAfterInterruption() {
+        AnimatorStateMachine sm = createModel("a", "b");
+        animator.addParameter("x", AnimatorControllerParameterType.Bool);
+        animator.addParameter("back", AnimatorControllerParameterType.Bool);
+
+        AnimatorState a = sm.addState("A", "a");
+        AnimatorState b = sm.addState("B", "b");
+        sm.setDefaultState(a);
+        AnimatorStateTransition ab = a.addTransition(b);
+        ab.addCondition(AnimatorConditionMode.If, 0, "x");
+        ab.setInterruptionSource(TransitionInterruptionSource.Destination);
+        b.addTransition(a).addCondition(AnimatorConditionMode.If, 0, "back");
+
+        simulate(0.1f);
+        animator.setBool("x", true);
+        animator.setBool("back", true);
+        model.updateLogicalState(TPF);
+        assertEquals("B", currentState());
+
+        // B -> A interrupts A -> B
+        model.updateLogicalState(TPF);
+        assertEquals("A", currentState());
+
+        animator.setBool("back", false);
+        simulate(2f);
+        assertEquals("A -> B not taken again", "B", currentState());
+    }
+
+    /**
+     * A trigger set by a StateMachineBehaviour during an update is not reset
+     * at the end of that update.
+     */
+    @Test
+    public void testTriggerSetDuringUpdate() {
+        AnimatorStateMachine sm = createModel("a", "b");
+        animator.addParameter("t", AnimatorControllerParameterType.Trigger);
+
+        AnimatorState a = sm.addState("A", "a");
+        AnimatorState b = sm.addState("B", "b");
+        sm.setDefaultState(a);
+        a.addTransition(b).addCondition(AnimatorConditionMode.If, 0, "t");
+        a.addStateMachineBehaviour(new StateMachineBehaviour() {
+            @Override
+            public void onStateEnter(AnimatorController animator) {
+            }
+
+            @Override
+            public void onStateUpdate(AnimatorController animator, float tpf) {
+                animator.setTrigger("t");
+            }
+
+            @Override
+            public void onStateExit(AnimatorController animator) {
+            }
+        });
+
+        simulate(0.1f);
+        assertEquals("B", currentState());
+    }
+
+    /**
+     * The childs of a 1D blend tree are weighted by their thresholds, whatever
+     * the order they were added in.
+     */
+    @Test
+    public void testBlendTree1DThresholds() {
+        AnimatorStateMachine sm = createModel("idle", "walk", "run");
+        animator.addParameter("speed", AnimatorControllerParameterType.Float);
+
+        BlendTree tree = new BlendTree();
+        tree.setBlendParameter("speed");
+        tree.addChild("run", 1f);
+        tree.addChild("idle", 0f);
+        tree.addChild("walk", 0.25f);
+        AnimatorState move = sm.createBlendTree("Move", tree);
+        sm.setDefaultState(move);
+
+        animator.setFloat("speed", 0.125f);
+        simulate(0.1f);
+
+        WeightedBlendAction action = (WeightedBlendAction) model.getControl(AnimComposer.class).getAction("Move");
+        assertEquals(0f, action.getWeight(0), 1e-5f);
+        assertEquals(0.5f, action.getWeight(1), 1e-5f);
+        assertEquals(0.5f, action.getWeight(2), 1e-5f);
+    }
+
+    /**
+     * The conditions are evaluated again only in the frame an exit time is
+     * passed, once per loop for an exit time lower than 1.
+     */
+    @Test
+    public void testExitTimeCrossing() {
+        AnimatorStateMachine sm = createModel("a", "b", "c");
+        AnimatorState a = sm.addState("A", "a");
+        AnimatorState b = sm.addState("B", "b");
+        AnimatorState c = sm.addState("C", "c");
+        a.addTransition(b, 0.1f);
+        a.addTransition(c, 1.5f);
+        a.compileTransitions();
+
+        assertTrue(a.isExitTimeCrossed(0.05, 0.15));
+        assertFalse(a.isExitTimeCrossed(0.15, 0.25));
+        assertFalse(a.isExitTimeCrossed(0.95, 1.05));
+        assertTrue(a.isExitTimeCrossed(0.95, 1.15));
+        assertTrue(a.isExitTimeCrossed(0.05, 2.05));
+        assertTrue(a.isExitTimeCrossed(1.45, 1.55));
+        assertFalse(a.isExitTimeCrossed(1.55, 1.65));
+
+        sm.setDefaultState(a);
+        simulate(0.2f);
+        assertEquals("B", currentState());
+    }
+
+    /**
+     * The transitions of a modified graph are compiled before the decide
+     * phase, which only selects the transition of each layer.
+     */
+    @Test
+    public void testTwoPhaseCompilesBeforeDecide() {
+        AnimatorStateMachine sm = createModel("a", "b");
+        animator.addParameter("x", AnimatorControllerParameterType.Bool);
+        AnimatorState a = sm.addState("A", "a");
+        AnimatorState b = sm.addState("B", "b");
+        sm.setDefaultState(a);
+        simulate(0.1f);
+
+        a.addTransition(b).addCondition(AnimatorConditionMode.If, 0, "x");
+        animator.setBool("x", true);
+
+        assertTrue(animator.prepareUpdate(TPF));
+        AnimatorStateTransition[] compiled = a.compiledTransitions;
+        assertEquals(1, compiled.length);
+
+        animator.evaluateTransitions();
+        assertSame(compiled, a.compiledTransitions);
+        assertSame(compiled[0], animator.getCurrentAnimatorStateInfo(0).pendingTransition);
+
+        animator.applyTransitions();
+        assertEquals("B", currentState());
+    }
+
+    /**
+     * A parameter read by a condition or a blend tree cannot be removed.
+     */
+    @Test
+    public void testRemoveUsedParameter() {
+        AnimatorStateMachine sm = createModel("a", "b");
+        animator.addParameter("x", AnimatorControllerParameterType.Bool);
+        animator.addParameter("speed", AnimatorControllerParameterType.Float);
+        animator.addParameter("unused", AnimatorControllerParameterType.Int);
+
+        AnimatorStateMachine sub = sm.addStateMachine("Sub");
+        AnimatorState a = sub.addState("A", "a");
+        AnimatorState b = sub.addState("B", "b");
+        a.addTransition(b).addCondition(AnimatorConditionMode.If, 0, "x");
+
+        BlendTree tree = new BlendTree();
+        tree.setBlendParameter("speed");
+        tree.addChild("a", 0f);
+        tree.addChild("b", 1f);
+        sm.createBlendTree("Move", tree);
+
+        assertRemoveFails("x");
+        assertRemoveFails("speed");
+
+        animator.removeParameter(animator.getParameter("unused"));
+        assertNull(animator.getParameter("unused"));
+    }
+
+    private void assertRemoveFails(String name) {
+        try {
+            animator.removeParameter(animator.getParameter(name));
+            fail("removed parameter " + name);
+        } catch (IllegalArgumentException e) {
+            assertNotNull(animator.getParameter(name));
+        }
+    }
+
+    /**
+     * Only a Float parameter can drive the weight of a layer.
+     */
+    @Test
+    public void testWeightParameterType() {
+        createModel("a");
+        animator.addParameter("weight", AnimatorControllerParameterType.Float);
+        animator.addParameter("aim", AnimatorControllerParameterType.Bool);
+        AnimatorControllerLayer layer = animator.addLayer("UpperBody", null);
+
+        layer.setWeightParameter("weight");
+        try {
+            layer.setWeightParameter("aim");
+            fail("Bool parameter accepted as layer weight");
+        } catch (IllegalArgumentException e) {
+            assertEquals("weight", layer.getWeightParameter());
+        }
+    }
+
+}
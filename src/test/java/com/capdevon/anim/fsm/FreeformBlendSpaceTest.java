@@ -0,0 +1,82 @@
+package com.capdevon.anim.fsm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.jme3.math.Vector2f;
+
+/**
+ * Computes the weights of freeform 2D blend spaces.
+ *
+ * @author capdevon
+ */
+public class FreeformBlendSpaceTest {
+
+    private static final float DELTA = 1e-4f;
+
+    //Idle at the origin, walk and run forward, strafe left and right.
+    private final FreeformBlendSpace space = new FreeformBlendSpace(new Vector2f[] {
+        new Vector2f(0, 0),
+        new Vector2f(0, 1),
+        new Vector2f(0, 2),
+        new Vector2f(1, 0),
+        new Vector2f(-1, 0)
+    });
+    private final float[] weights = new float[5];
+
+    private void assertWeights(float... expected) {
+        float total = 0;
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("weight " + i, expected[i], weights[i], DELTA);
+            total += weights[i];
+        }
+        assertEquals(1f, total, DELTA);
+    }
+
+    @Test
+    public void testDirectionalOnChild() {
+        space.computeDirectionalWeights(0, 0, weights);
+        assertWeights(1, 0, 0, 0, 0);
+
+        space.computeDirectionalWeights(0, 2, weights);
+        assertWeights(0, 0, 1, 0, 0);
+    }
+
+    /**
+     * Between two childs in the same direction, only the magnitude counts.
+     */
+    @Test
+    public void testDirectionalMagnitude() {
+        space.computeDirectionalWeights(0, 0.5f, weights);
+        assertWeights(0.5f, 0.5f, 0, 0, 0);
+
+        space.computeDirectionalWeights(0, 1.5f, weights);
+        assertWeights(0, 0.5f, 0.5f, 0, 0);
+    }
+
+    /**
+     * Between two childs with the same magnitude, only the angle counts.
+     */
+    @Test
+    public void testDirectionalAngle() {
+        float d = (float) Math.sqrt(0.5);
+        space.computeDirectionalWeights(d, d, weights);
+        assertEquals(0, weights[0], DELTA);
+        assertEquals(weights[1], weights[3], DELTA);
+        assertEquals(0, weights[4], DELTA);
+    }
+
+    /**
+     * Two childs at the same position would give undefined weights.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatePosition() {
+        new FreeformBlendSpace(new Vector2f[] {
+            new Vector2f(0, 1),
+            new Vector2f(1, 0),
+            new Vector2f(0, 1)
+        });
+    }
+
+}